@@ -0,0 +1,109 @@
+package ru.iisuslik.ftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download of big file from local server through one connection and through several connections.
+ * Local server has no network latency, so it shows the cost of splitting, on real links with
+ * high latency several connections give more
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParallelDownloadBenchmark {
+  private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+  private FTPServer server;
+  private int port;
+  private File source;
+  private File downloaded;
+  private PrintStream systemOut;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    systemOut = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }));
+    source = File.createTempFile("ftpBenchmark", ".bin");
+    byte[] data = new byte[FILE_SIZE];
+    new Random(42).nextBytes(data);
+    Files.write(source.toPath(), data);
+    downloaded = new File(source.getName());
+    ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+    port = serverSocket.getLocalPort();
+    server = new FTPServer(serverSocket);
+    Thread serverThread = new Thread(server::start);
+    serverThread.setDaemon(true);
+    serverThread.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.stop();
+    source.delete();
+    downloaded.delete();
+    System.setOut(systemOut);
+  }
+
+  /**
+   * Count of connections for parallel download
+   */
+  @State(Scope.Benchmark)
+  public static class Connections {
+    @Param({"1", "2", "4", "8"})
+    public int count;
+  }
+
+  /**
+   * Usual download with one get request
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long oneConnection() throws IOException {
+    downloaded.delete();
+    try (FTPClient client = new FTPClient("localhost", port)) {
+      client.getFile(source.getPath());
+    }
+    return downloaded.length();
+  }
+
+  /**
+   * Download by ranges through several connections
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long parallelConnections(Connections connections) throws IOException {
+    downloaded.delete();
+    FTPClient.getFileParallel("localhost", port, source.getPath(), connections.count);
+    return downloaded.length();
+  }
+}
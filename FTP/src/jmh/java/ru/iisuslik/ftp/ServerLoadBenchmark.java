@@ -0,0 +1,171 @@
+package ru.iisuslik.ftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load of FTPServer in every mode: many idle clients are connected, slow clients send their requests
+ * byte by byte, and active clients measure time of list request. Run on Java 21 to get virtual threads,
+ * run with -prof gc to compare memory
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ServerLoadBenchmark {
+  private static final String DIR = "src/test/resources/testDir";
+  private static final int SLOW_CLIENTS = 16;
+
+  public enum ServerMode {
+    PLATFORM_THREADS, VIRTUAL_THREADS, EVENT_LOOP
+  }
+
+  @Param({"PLATFORM_THREADS", "VIRTUAL_THREADS", "EVENT_LOOP"})
+  public ServerMode mode;
+
+  @Param({"100", "2000"})
+  public int idleClients;
+
+  private FTPServer server;
+  private int port;
+  private final List<Socket> sockets = new ArrayList<>();
+  private final List<Thread> slowClients = new ArrayList<>();
+  private volatile boolean isStopped = false;
+  private PrintStream systemOut;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    systemOut = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }));
+    ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0), 4096).socket();
+    port = serverSocket.getLocalPort();
+    server = new FTPServer(serverSocket);
+    Thread serverThread = new Thread(() -> {
+      switch (mode) {
+        case PLATFORM_THREADS:
+          server.start();
+          break;
+        case VIRTUAL_THREADS:
+          server.startVirtualThreads(Integer.MAX_VALUE);
+          break;
+        case EVENT_LOOP:
+          server.startEventLoop(2);
+          break;
+      }
+    });
+    serverThread.setDaemon(true);
+    serverThread.start();
+    for (int i = 0; i < idleClients; i++) {
+      sockets.add(new Socket("localhost", port));
+    }
+    for (int i = 0; i < SLOW_CLIENTS; i++) {
+      Socket socket = new Socket("localhost", port);
+      sockets.add(socket);
+      Thread thread = new Thread(() -> slowClient(socket));
+      thread.setDaemon(true);
+      slowClients.add(thread);
+      thread.start();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    isStopped = true;
+    for (Thread thread : slowClients) {
+      thread.join();
+    }
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    server.stop();
+    System.setOut(systemOut);
+  }
+
+  /**
+   * Connection of one active client
+   */
+  @State(Scope.Thread)
+  public static class Client {
+    private Socket socket;
+    private FTPClient client;
+
+    @Setup(Level.Trial)
+    public void setUp(ServerLoadBenchmark benchmark) throws IOException {
+      socket = new Socket("localhost", benchmark.port);
+      client = new FTPClient(socket);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      socket.close();
+    }
+  }
+
+  /**
+   * Time of list request while other clients are connected
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Threads(4)
+  public List<FTPClient.FTPFile> listRequest(Client client) throws IOException {
+    return client.client.getList(DIR);
+  }
+
+  /**
+   * Sends list requests one byte per millisecond
+   */
+  private void slowClient(Socket socket) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream request = new DataOutputStream(bytes);
+      request.writeInt(1);
+      request.writeUTF(DIR);
+      OutputStream out = socket.getOutputStream();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      while (!isStopped) {
+        for (byte b : bytes.toByteArray()) {
+          out.write(b);
+          out.flush();
+          Thread.sleep(1);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          in.readUTF();
+          in.readBoolean();
+        }
+      }
+    } catch (IOException | InterruptedException ignored) {
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package ru.iisuslik.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread of non-blocking server, one Selector serves many connections, see {@link FTPServer#startEventLoop(int)}.
+ * Every connection reads requests into its buffer and handles them only when the whole request is there,
+ * response is written when the socket is ready, so slow client doesn't stop other clients
+ */
+class EventLoop implements Runnable {
+
+  private static final int MAX_REQUEST_SIZE = 1 << 17;
+
+  private final Selector selector;
+  private final Queue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>();
+  private volatile boolean isStopped = false;
+
+  EventLoop() throws IOException {
+    selector = Selector.open();
+  }
+
+  /**
+   * Gives accepted connection to this loop, it can be called from any thread
+   */
+  void add(@NotNull SocketChannel channel) {
+    newConnections.add(channel);
+    selector.wakeup();
+  }
+
+  /**
+   * Makes this loop accept new connections and spread them between all the loops
+   */
+  void accept(@NotNull ServerSocketChannel server, @NotNull EventLoop[] loops) throws IOException {
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT, loops);
+  }
+
+  /**
+   * Stops the loop and closes all its connections
+   */
+  void stop() {
+    isStopped = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Closes the loop that was never run
+   */
+  void close() {
+    isStopped = true;
+    closeAll();
+  }
+
+  @Override
+  public void run() {
+    int next = 0;
+    try {
+      while (!isStopped) {
+        selector.select();
+        registerNew();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            EventLoop[] loops = (EventLoop[]) key.attachment();
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null) {
+              loops[next].add(channel);
+              next = (next + 1) % loops.length;
+            }
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          try {
+            connection.serve(key.isReadable());
+          } catch (IOException e) {
+            System.out.println("Problems with client: " + e.getMessage());
+            connection.close();
+          }
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Can't connect to client: " + e.getMessage());
+    } catch (ClosedSelectorException ignored) {
+    } finally {
+      closeAll();
+    }
+  }
+
+  private void registerNew() {
+    SocketChannel channel;
+    while ((channel = newConnections.poll()) != null) {
+      try {
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException e) {
+        System.out.println("Can't connect to client: " + e.getMessage());
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  private void closeAll() {
+    try {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        } else {
+          closeQuietly(key.channel());
+        }
+      }
+      selector.close();
+    } catch (IOException | ClosedSelectorException ignored) {
+    }
+    SocketChannel channel;
+    while ((channel = newConnections.poll()) != null) {
+      closeQuietly(channel);
+    }
+  }
+
+  private static void closeQuietly(@NotNull Channel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * One client. Requests are handled one by one, next request is read only after the response
+   * to the previous one is written, so client can't fill server's memory with responses
+   */
+  private static class Connection {
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer input = ByteBuffer.allocate(256);
+    private final Queue<ByteBuffer> output = new ArrayDeque<>();
+    private FileChannel file = null;
+    private long filePosition;
+    private long fileEnd;
+
+    private Connection(@NotNull SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Reads what came from client if socket is readable, handles complete requests
+     * and writes responses while socket takes them
+     */
+    private void serve(boolean isReadable) throws IOException {
+      if (isReadable && channel.read(input) == -1) {
+        System.out.println("Client closed connection");
+        close();
+        return;
+      }
+      while (write()) {
+        input.flip();
+        int length = frameLength();
+        if (length < 0) {
+          input.compact();
+          if (!input.hasRemaining()) {
+            grow();
+          }
+          break;
+        }
+        byte[] frame = new byte[length];
+        input.get(frame);
+        input.compact();
+        handle(frame);
+      }
+      key.interestOps(hasOutput() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Length of the first request in the buffer that is ready to be read
+     *
+     * @return -1 if the request isn't read completely yet
+     */
+    private int frameLength() {
+      if (input.remaining() < 4) {
+        return -1;
+      }
+      int type = input.getInt(input.position());
+      if (type != 1 && type != 2 && type != 3) {
+        return 4;
+      }
+      if (input.remaining() < 6) {
+        return -1;
+      }
+      int length = 6 + (input.getShort(input.position() + 4) & 0xFFFF) + (type == 3 ? 16 : 0);
+      return input.remaining() >= length ? length : -1;
+    }
+
+    /**
+     * Handles request with the same code as blocking server, only file is sent later by {@link #write()}
+     */
+    private void handle(@NotNull byte[] frame) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+      int type = in.readInt();
+      System.out.println("Get request for type # " + type + " in thread " + Thread.currentThread().getName());
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      switch (type) {
+        case 1:
+          FTPServer.handleListRequest(in, out);
+          break;
+        case 2:
+          file = FTPServer.openRequestedFile(in.readUTF());
+          if (file == null) {
+            out.writeLong(0);
+            break;
+          }
+          filePosition = 0;
+          fileEnd = file.size();
+          out.writeLong(fileEnd);
+          break;
+        case 3:
+          file = FTPServer.openRequestedFile(in.readUTF());
+          long offset = in.readLong();
+          long length = in.readLong();
+          if (file == null) {
+            out.writeLong(0);
+            out.writeLong(0);
+            break;
+          }
+          long size = file.size();
+          filePosition = FTPServer.rangeStart(offset, size);
+          fileEnd = filePosition + FTPServer.rangeCount(filePosition, length, size);
+          out.writeLong(size);
+          out.writeLong(fileEnd - filePosition);
+          break;
+        default:
+          return;
+      }
+      output.add(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * Writes as much of the response as socket takes now
+     *
+     * @return True if the whole response is written
+     */
+    private boolean write() throws IOException {
+      while (!output.isEmpty()) {
+        ByteBuffer buffer = output.peek();
+        channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          return false;
+        }
+        output.poll();
+      }
+      if (file == null) {
+        return true;
+      }
+      while (filePosition < fileEnd) {
+        long sent = file.transferTo(filePosition, fileEnd - filePosition, channel);
+        if (sent == 0) {
+          if (filePosition >= file.size()) {
+            throw new IOException("File became shorter while it was sent");
+          }
+          return false;
+        }
+        filePosition += sent;
+      }
+      file.close();
+      file = null;
+      System.out.println("Response with file was sent");
+      return true;
+    }
+
+    private boolean hasOutput() {
+      return !output.isEmpty() || file != null;
+    }
+
+    private void grow() throws IOException {
+      if (input.capacity() >= MAX_REQUEST_SIZE) {
+        throw new IOException("Request is too big");
+      }
+      input.flip();
+      input = ByteBuffer.allocate(input.capacity() * 2).put(input);
+    }
+
+    private void close() {
+      if (file != null) {
+        closeQuietly(file);
+        file = null;
+      }
+      if (key != null) {
+        key.cancel();
+      }
+      closeQuietly(channel);
+    }
+  }
+}
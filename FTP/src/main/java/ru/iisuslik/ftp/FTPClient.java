@@ -2,21 +2,37 @@ package ru.iisuslik.ftp;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Client that can send to FTP server request for list files in directory or download file
  */
-public class FTPClient {
+public class FTPClient implements Closeable {
 
+  private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+  private final Socket socket;
   private DataInputStream in;
   private DataOutputStream out;
 
@@ -38,8 +54,9 @@ public class FTPClient {
    * @throws IOException if there are some problems with getting streams from socket
    */
   public FTPClient(@NotNull Socket socket) throws IOException {
-    in = new DataInputStream(socket.getInputStream());
-    out = new DataOutputStream(socket.getOutputStream());
+    this.socket = socket;
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
   }
 
   private void sendRequest(int type, @NotNull String path) throws IOException {
@@ -50,6 +67,16 @@ public class FTPClient {
     System.out.println("Stop sending");
   }
 
+  private void sendRangeRequest(@NotNull String path, long offset, long length) throws IOException {
+    System.out.println("Sending range request");
+    out.writeInt(3);
+    out.writeUTF(path);
+    out.writeLong(offset);
+    out.writeLong(length);
+    out.flush();
+    System.out.println("Stop sending");
+  }
+
   /**
    * Send file list request to FTP server
    *
@@ -72,21 +99,220 @@ public class FTPClient {
   }
 
   /**
-   * Download file from FTP server
+   * Download file from FTP server. File is written to the local file with ".part" suffix and renamed
+   * when it's complete, so local file with the same name is replaced only by the whole file.
+   * If download is broken, ".part" file stays and the next download of the same file continues it
    *
    * @param path file to download
    * @throws IOException if there are some network problems
    */
   public void getFile(@NotNull String path) throws IOException {
-    sendRequest(2, path);
-    downloadFile(path);
+    File part = partFile(path);
+    long downloaded = part.length();
+    if (downloaded == 0) {
+      sendRequest(2, path);
+      downloadFile(path);
+      return;
+    }
+    sendRangeRequest(path, downloaded, Long.MAX_VALUE);
+    long size = in.readLong();
+    long count = in.readLong();
+    if (size == 0) {
+      System.out.println("You tried to download directory or file \"" + fileName(path) + "\" doesn't exist ");
+      return;
+    }
+    if (size < downloaded) {
+      System.out.println("Local file \"" + part + "\" is longer than remote one, downloading it again");
+      part.delete();
+      getFile(path);
+      return;
+    }
+    try (FileChannel file = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+      receiveRange(file, downloaded, count);
+    }
+    complete(path);
+    System.out.println("Resumed file " + path + " from byte " + downloaded + " to local file " + fileName(path));
+  }
+
+  /**
+   * Download part of the file from FTP server and write it to the same position of the local file
+   *
+   * @param path   file to download
+   * @param offset first byte of the part
+   * @param length max count of bytes, part ends earlier if file ends
+   * @param file   local file opened for writing
+   * @return size of the whole remote file, 0 if it doesn't exist
+   * @throws IOException if there are some network problems
+   */
+  public long getRange(@NotNull String path, long offset, long length, @NotNull FileChannel file)
+      throws IOException {
+    sendRangeRequest(path, offset, length);
+    long size = in.readLong();
+    long count = in.readLong();
+    receiveRange(file, FTPServer.rangeStart(offset, size), count);
+    return size;
+  }
+
+  /**
+   * Get size of the file on FTP server, it's the range request with empty range
+   *
+   * @param path file on server
+   * @return size of the file, 0 if it doesn't exist
+   * @throws IOException if there are some network problems
+   */
+  public long getSize(@NotNull String path) throws IOException {
+    sendRangeRequest(path, 0, 0);
+    long size = in.readLong();
+    in.readLong();
+    return size;
+  }
+
+  /**
+   * Download part of the file from FTP server to memory
+   *
+   * @param path   file to download
+   * @param offset first byte of the part
+   * @param length max count of bytes, part ends earlier if file ends
+   * @return bytes of the part
+   * @throws IOException if there are some network problems
+   */
+  public @NotNull
+  byte[] getSlice(@NotNull String path, long offset, int length) throws IOException {
+    sendRangeRequest(path, offset, length);
+    in.readLong();
+    byte[] data = new byte[(int) in.readLong()];
+    in.readFully(data);
+    return data;
   }
 
-  private String fileName(@NotNull String path) {
+  /**
+   * Download file from FTP server through several connections at the same time, it helps when one
+   * connection can't use all the bandwidth. Temporary file gets the full size first, then every connection
+   * takes next chunk of the file and writes it right to its place. Temporary file replaces the local file
+   * only when all the chunks are downloaded, otherwise it's deleted. It isn't a ".part" file of
+   * {@link #getFile(String)}, because chunks that aren't downloaded leave holes in it
+   *
+   * @param host            FTP server's host
+   * @param port            FTP server's port
+   * @param path            file to download, it's saved to the local file with the same name
+   * @param connectionCount count of connections
+   * @throws IOException if there are some network problems or file was changed while it was downloaded
+   */
+  public static void getFileParallel(@NotNull String host, int port, @NotNull String path, int connectionCount)
+      throws IOException {
+    if (connectionCount <= 0) {
+      throw new IllegalArgumentException("Count of connections should be positive");
+    }
+    long size;
+    try (FTPClient client = new FTPClient(host, port)) {
+      size = client.getSize(path);
+    }
+    if (size == 0) {
+      System.out.println("You tried to download directory or file \"" + fileName(path) + "\" doesn't exist ");
+      return;
+    }
+    long chunkSize = Math.max(MIN_CHUNK_SIZE, (size + connectionCount * 4 - 1) / (connectionCount * 4));
+    Path temporary = Files.createTempFile(Paths.get("").toAbsolutePath(), fileName(path), ".tmp");
+    boolean isDownloaded = false;
+    try {
+      downloadChunks(host, port, path, temporary, size, chunkSize, connectionCount);
+      Files.move(temporary, Paths.get(fileName(path)), StandardCopyOption.REPLACE_EXISTING);
+      isDownloaded = true;
+    } finally {
+      if (!isDownloaded) {
+        temporary.toFile().delete();
+      }
+    }
+    System.out.println("Downloaded File " + path + " to local file " + fileName(path)
+        + " through " + connectionCount + " connections");
+  }
+
+  /**
+   * Every thread downloads chunks to the temporary file until all the chunks are taken or some thread fails,
+   * exception of the first failed thread is thrown
+   */
+  private static void downloadChunks(@NotNull String host, int port, @NotNull String path, @NotNull Path temporary,
+                                     long size, long chunkSize, int connectionCount) throws IOException {
+    AtomicLong nextChunk = new AtomicLong();
+    AtomicReference<IOException> failure = new AtomicReference<>();
+    try (RandomAccessFile local = new RandomAccessFile(temporary.toFile(), "rw")) {
+      local.setLength(size);
+      FileChannel file = local.getChannel();
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < connectionCount; i++) {
+        Thread thread = new Thread(() -> {
+          try (FTPClient client = new FTPClient(host, port)) {
+            long offset;
+            while (failure.get() == null && (offset = nextChunk.getAndAdd(chunkSize)) < size) {
+              if (client.getRange(path, offset, chunkSize, file) != size) {
+                throw new IOException("File \"" + path + "\" was changed while it was downloaded");
+              }
+            }
+          } catch (IOException e) {
+            failure.compareAndSet(null, e);
+          }
+        }, "Download thread " + i);
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Download was interrupted", e);
+        }
+      }
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  /**
+   * Closes connection to the server
+   *
+   * @throws IOException if socket can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  /**
+   * Writes bytes from server to the file starting at position, file's own position isn't used
+   */
+  private void receiveRange(@NotNull FileChannel file, long position, long count) throws IOException {
+    byte[] buffer = new byte[65536];
+    while (count > 0) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (read == -1) {
+        throw new IOException("Server closed connection before the end of the file");
+      }
+      ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+      while (data.hasRemaining()) {
+        position += file.write(data, position);
+      }
+      count -= read;
+    }
+  }
+
+  private static String fileName(@NotNull String path) {
     String[] arr = path.split("/");
     return arr[arr.length - 1];
   }
 
+  private static File partFile(@NotNull String path) {
+    return new File(fileName(path) + ".part");
+  }
+
+  /**
+   * Replaces local file with downloaded ".part" file
+   */
+  private static void complete(@NotNull String path) throws IOException {
+    Files.move(partFile(path).toPath(), new File(fileName(path)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
   private void downloadFile(@NotNull String path) throws IOException {
     String fileName = fileName(path);
     long size = in.readLong();
@@ -94,16 +320,18 @@ public class FTPClient {
       System.out.println("You tried to download directory or file \"" + fileName + "\" doesn't exist ");
       return;
     }
-    File fileToSave = new File(fileName);
-    fileToSave.createNewFile();
-    FileOutputStream fileOut = new FileOutputStream(fileToSave);
-    byte[] buffer = new byte[4096];
-    int read = 0;
-    while (size > 0 && (read = in.read(buffer)) != -1) {
-      fileOut.write(buffer, 0, read);
-      size -= read;
+    try (FileOutputStream fileOut = new FileOutputStream(partFile(path))) {
+      byte[] buffer = new byte[4096];
+      while (size > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+        if (read == -1) {
+          throw new IOException("Server closed connection before the end of the file");
+        }
+        fileOut.write(buffer, 0, read);
+        size -= read;
+      }
     }
-    fileOut.close();
+    complete(path);
     System.out.println("Downloaded File " + path + " to local file " + fileName(path));
   }
 
@@ -139,6 +367,9 @@ public class FTPClient {
           case "download":
             client.getFile(path);
             break;
+          case "pdownload":
+            getFileParallel(args[0], Integer.parseInt(args[1]), path, 4);
+            break;
           default:
             printHelp();
             break;
@@ -152,6 +383,7 @@ public class FTPClient {
   private static void printHelp() {
     System.out.println("Use <list dirPath> to get list of files in dir");
     System.out.println("Use <download filePath> to download file");
+    System.out.println("Use <pdownload filePath> to download file through 4 connections");
   }
 
 
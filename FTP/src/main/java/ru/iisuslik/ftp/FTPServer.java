@@ -3,25 +3,38 @@ package ru.iisuslik.ftp;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Server that can handle 2 types of requests - list files in directory and download file
+ * Server that can handle 3 types of requests - list files in directory, download file and download part of file
  */
 public class FTPServer {
 
+  private static final long PERMIT_WAIT_MILLIS = 100;
+
   private ServerSocket server;
 
+  private volatile EventLoop[] eventLoops = null;
+
   /**
-   * Create new Server, it doesn't start it
+   * Create new Server, it doesn't start it.
+   * Server socket is opened as a channel, so files can be sent to clients without copying to the heap
    *
    * @param port in this port server will listen for requests
    * @throws IOException if there is a problem with creating server socket
    */
   public FTPServer(int port) throws IOException {
-    this(new ServerSocket(port));
+    this(ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket());
   }
 
   /**
@@ -52,36 +65,226 @@ public class FTPServer {
     }
   }
 
-  private static void handleGetRequest(@NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException {
-    String path = in.readUTF();
+  /**
+   * Starts server that handles every connection on new virtual thread with the same blocking code as
+   * {@link #start()}, blocked virtual thread doesn't take platform thread, so idle clients are cheap.
+   * When there are max connections, new clients wait until some connection is closed.
+   * Server checks if it's stopped while it waits, so {@link #stop()} works even when all the connections are taken.
+   * Virtual threads need Java 21, on older JVMs every connection gets new platform thread
+   *
+   * @param maxConnections max count of connections that are served at the same time
+   */
+  public void startVirtualThreads(int maxConnections) {
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("Max count of connections should be positive");
+    }
+    System.out.println("Server starts working with " + (VirtualThreads.isSupported() ? "virtual" : "platform")
+        + " threads, max " + maxConnections + " connections");
+    Semaphore connections = new Semaphore(maxConnections);
+    while (!server.isClosed()) {
+      try {
+        if (!connections.tryAcquire(PERMIT_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+          continue;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        System.out.println("Can't connect to client: " + e.getMessage());
+        return;
+      }
+      VirtualThreads.newThread(() -> {
+        try {
+          handleRequests(socket);
+        } finally {
+          try {
+            socket.close();
+          } catch (IOException ignored) {
+          }
+          connections.release();
+        }
+      }).start();
+    }
+  }
+
+  /**
+   * Starts non-blocking server, it will be waiting for clients. Connections are spread between
+   * event loop threads, every thread serves all its connections with one Selector, so idle clients
+   * don't take threads. The calling thread becomes one of the loops, like in {@link #start()}
+   *
+   * @param threadCount count of event loop threads
+   * @throws IllegalArgumentException if thread count isn't positive
+   * @throws IllegalStateException    if server socket wasn't opened as a channel
+   */
+  public void startEventLoop(int threadCount) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Count of event loop threads should be positive");
+    }
+    ServerSocketChannel channel = server.getChannel();
+    if (channel == null) {
+      throw new IllegalStateException("Event loop needs server socket opened by ServerSocketChannel");
+    }
+    System.out.println("Server starts working with " + threadCount + " event loops");
+    EventLoop[] loops = new EventLoop[threadCount];
+    try {
+      for (int i = 0; i < threadCount; i++) {
+        loops[i] = new EventLoop();
+      }
+    } catch (IOException e) {
+      System.out.println("Can't start event loop: " + e.getMessage());
+      closeLoops(loops);
+      return;
+    }
+    eventLoops = loops;
+    if (!channel.isOpen()) {
+      System.out.println("Server was stopped before event loops started");
+      closeLoops(loops);
+      return;
+    }
+    try {
+      loops[0].accept(channel, loops);
+    } catch (IOException e) {
+      System.out.println("Can't start event loop: " + e.getMessage());
+      closeLoops(loops);
+      return;
+    }
+    for (int i = 1; i < threadCount; i++) {
+      new Thread(loops[i], "Event loop " + i).start();
+    }
+    loops[0].run();
+    for (int i = 1; i < threadCount; i++) {
+      loops[i].stop();
+    }
+  }
+
+  /**
+   * Stops server, it doesn't accept new clients after this. In event loop mode all the connections
+   * are closed too, in other modes connections are served until clients disconnect
+   */
+  public void stop() {
+    EventLoop[] loops = eventLoops;
+    if (loops != null) {
+      for (EventLoop loop : loops) {
+        loop.stop();
+      }
+    }
+    try {
+      server.close();
+    } catch (IOException e) {
+      System.out.println("Can't close server socket: " + e.getMessage());
+    }
+  }
+
+  private static void closeLoops(@NotNull EventLoop[] loops) {
+    for (EventLoop loop : loops) {
+      if (loop != null) {
+        loop.close();
+      }
+    }
+  }
+
+  /**
+   * Opens file of get request
+   *
+   * @param path file to send
+   * @return channel of the file or null if it can't be sent
+   */
+  static FileChannel openRequestedFile(@NotNull String path) {
     System.out.println("Get request to get file \"" + path + '\"');
     File file = new File(path);
     if (!file.exists()) {
       System.out.println('\"' + path + "\" doesn't exists");
-      out.writeLong(0);
-      return;
+      return null;
     }
     if (file.isDirectory()) {
       System.out.println('\"' + path + "\" is a directory");
-      out.writeLong(0);
-      return;
+      return null;
     }
-    out.writeLong(file.length());
-    byte[] data = new byte[(int) file.length()];
-    try(FileInputStream fis = new FileInputStream(file)) {
-      fis.read(data);
+    try {
+      return FileChannel.open(file.toPath(), StandardOpenOption.READ);
     } catch (IOException e) {
       System.out.println("Can't open \"" + path + "\"");
+      return null;
+    }
+  }
+
+  private static void handleGetRequest(@NotNull DataInputStream in, @NotNull DataOutputStream out,
+                                       @NotNull WritableByteChannel channel) throws IOException {
+    FileChannel fileChannel = openRequestedFile(in.readUTF());
+    if (fileChannel == null) {
       out.writeLong(0);
       return;
     }
-    out.write(data);
-    out.flush();
+    try (FileChannel data = fileChannel) {
+      long size = data.size();
+      out.writeLong(size);
+      out.flush();
+      sendFile(data, 0, size, channel);
+    }
     System.out.println("Response for get file request was sent");
+  }
+
+  /**
+   * Sends part of the file. Response is the size of the whole file, count of bytes that follow and the bytes,
+   * so client can resume download or get any slice of the file
+   */
+  private static void handleRangeRequest(@NotNull DataInputStream in, @NotNull DataOutputStream out,
+                                         @NotNull WritableByteChannel channel) throws IOException {
+    FileChannel fileChannel = openRequestedFile(in.readUTF());
+    long offset = in.readLong();
+    long length = in.readLong();
+    if (fileChannel == null) {
+      out.writeLong(0);
+      out.writeLong(0);
+      return;
+    }
+    try (FileChannel data = fileChannel) {
+      long size = data.size();
+      long start = rangeStart(offset, size);
+      long count = rangeCount(start, length, size);
+      out.writeLong(size);
+      out.writeLong(count);
+      out.flush();
+      sendFile(data, start, count, channel);
+    }
+    System.out.println("Response for get range request was sent");
+  }
 
+  /**
+   * First byte of the range, offset out of the file is moved to its end
+   */
+  static long rangeStart(long offset, long size) {
+    return Math.min(Math.max(offset, 0), size);
   }
 
-  private static void handleListRequest(@NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException {
+  /**
+   * Count of bytes of the range that are in the file
+   */
+  static long rangeCount(long start, long length, long size) {
+    return Math.max(Math.min(length, size - start), 0);
+  }
+
+  /**
+   * Sends part of the file with transferTo, for socket channel it's done by the kernel without
+   * copying data to the heap, so memory used for a transfer doesn't depend on file size
+   */
+  private static void sendFile(@NotNull FileChannel file, long position, long count,
+                               @NotNull WritableByteChannel channel) throws IOException {
+    long end = position + count;
+    while (position < end) {
+      long sent = file.transferTo(position, end - position, channel);
+      if (sent == 0 && position >= file.size()) {
+        throw new IOException("File became shorter while it was sent");
+      }
+      position += sent;
+    }
+  }
+
+  static void handleListRequest(@NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException {
     String path = in.readUTF();
     System.out.println("Get request to list files in directory \"" + path + '\"');
     File dir = new File(path);
@@ -106,11 +309,16 @@ public class FTPServer {
     System.out.println("Response for list request was sent");
   }
 
+  /**
+   * Streams are buffered, so the response goes to the client in one piece after the request is handled,
+   * otherwise every small write waits for the ack of the previous one
+   */
   private static void handleRequests(@NotNull Socket socket) {
     System.out.println("Start handling requests in thread " + Thread.currentThread().getName());
     try {
-      DataInputStream in = new DataInputStream(socket.getInputStream());
-      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      WritableByteChannel channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
       while (socket.isConnected()) {
         System.out.println("Waiting for next request" + " in thread " + Thread.currentThread().getName());
         int type = in.readInt();
@@ -120,9 +328,13 @@ public class FTPServer {
             handleListRequest(in, out);
             break;
           case 2:
-            handleGetRequest(in, out);
+            handleGetRequest(in, out, channel);
+            break;
+          case 3:
+            handleRangeRequest(in, out, channel);
             break;
         }
+        out.flush();
       }
     } catch (IOException e) {
       System.out.println("Problems with client: " + e.getMessage());
@@ -132,18 +344,27 @@ public class FTPServer {
   /**
    * This functions creates and starts server in terminal
    *
-   * @param args the first arg should be server's port
+   * @param args the first arg should be server's port, the second optional arg is count of event loop threads
+   *             or "virtual" and max count of connections, without it every client gets its own thread
    */
   public static void main(String[] args) {
     try {
       FTPServer server = new FTPServer(Integer.parseInt(args[0]));
-      server.start();
+      if (args.length > 2 && args[1].equals("virtual")) {
+        server.startVirtualThreads(Integer.parseInt(args[2]));
+      } else if (args.length > 1) {
+        server.startEventLoop(Integer.parseInt(args[1]));
+      } else {
+        server.start();
+      }
     } catch (IOException e) {
       System.out.println("Can't create server: " + e.getMessage());
     } catch (ArrayIndexOutOfBoundsException e) {
       System.out.println("Choose server port as a first argument");
     } catch (NumberFormatException e) {
       System.out.println("First argument should be port - integer number");
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
     }
 
   }
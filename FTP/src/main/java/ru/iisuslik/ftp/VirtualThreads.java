@@ -0,0 +1,52 @@
+package ru.iisuslik.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Source of connection threads for {@link FTPServer#startVirtualThreads(int)}.
+ * Server is compiled for Java 8, so virtual threads of Java 21 are found by reflection.
+ * If JVM doesn't have them, new platform thread is created for every connection
+ */
+class VirtualThreads {
+
+  private static final ThreadFactory FACTORY = createFactory();
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Creates new unstarted thread for the connection
+   */
+  static Thread newThread(@NotNull Runnable task) {
+    return FACTORY.newThread(task);
+  }
+
+  /**
+   * Checks if connections get virtual threads in this JVM
+   */
+  static boolean isSupported() {
+    return !(FACTORY instanceof PlatformFactory);
+  }
+
+  private static ThreadFactory createFactory() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Connection thread ", 0L);
+      Method factory = builderClass.getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return new PlatformFactory();
+    }
+  }
+
+  private static class PlatformFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(@NotNull Runnable task) {
+      return new Thread(task, "Connection thread");
+    }
+  }
+}
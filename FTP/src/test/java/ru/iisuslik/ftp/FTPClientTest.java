@@ -9,10 +9,14 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import ru.iisuslik.ftp.FTPClient.FTPFile;
 
 import static org.junit.Assert.*;
@@ -36,12 +40,13 @@ public class FTPClientTest {
   }
 
   /**
-   * Checks that downloading file function works
+   * Checks that downloading file function works and old local file is replaced
    */
   @Test
   public void getFile() throws Exception {
     Socket s = mock(Socket.class);
     String file = "data";
+    Files.write(new File("file").toPath(), "old!".getBytes());
     when(s.getInputStream()).thenReturn(getInputStreamWithFile(file));
     ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
     when(s.getOutputStream()).thenReturn(byteOut);
@@ -50,9 +55,110 @@ public class FTPClientTest {
     File withData = new File("file");
     assertEquals("data", Files.lines(withData.toPath()).findFirst().get());
     assertEqualsRequests(2, "file", byteOut.toByteArray());
+    assertFalse(new File("file.part").exists());
     withData.delete();
   }
 
+  /**
+   * Checks that download continues from the end of ".part" file and it's renamed after that
+   */
+  @Test
+  public void resumeFile() throws Exception {
+    Socket s = mock(Socket.class);
+    File partial = new File("file.part");
+    File complete = new File("file");
+    Files.write(partial.toPath(), "da".getBytes());
+    ByteArrayOutputStream o = new ByteArrayOutputStream();
+    DataOutputStream response = new DataOutputStream(o);
+    response.writeLong(4);
+    response.writeLong(2);
+    response.write("ta".getBytes());
+    when(s.getInputStream()).thenReturn(new ByteArrayInputStream(o.toByteArray()));
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    when(s.getOutputStream()).thenReturn(byteOut);
+    FTPClient client = new FTPClient(s);
+    client.getFile("file");
+    assertFalse(partial.exists());
+    assertEquals("data", Files.lines(complete.toPath()).findFirst().get());
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(byteOut.toByteArray()));
+    assertEquals(3, in.readInt());
+    assertEquals("file", in.readUTF());
+    assertEquals(2, in.readLong());
+    assertEquals(Long.MAX_VALUE, in.readLong());
+    complete.delete();
+  }
+
+  /**
+   * Checks that file downloaded through several connections is the same as on server
+   */
+  @Test
+  public void parallelDownload() throws Exception {
+    ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+    FTPServer server = new FTPServer(serverSocket);
+    Thread serverThread = new Thread(server::start);
+    serverThread.setDaemon(true);
+    serverThread.start();
+    File source = File.createTempFile("ftpSource", ".bin");
+    File downloaded = new File(source.getName());
+    try {
+      byte[] data = new byte[5 * 1024 * 1024 + 13];
+      new Random(43).nextBytes(data);
+      Files.write(source.toPath(), data);
+      FTPClient.getFileParallel("localhost", serverSocket.getLocalPort(), source.getPath(), 3);
+      assertArrayEquals(data, Files.readAllBytes(downloaded.toPath()));
+    } finally {
+      source.delete();
+      downloaded.delete();
+      server.stop();
+    }
+  }
+
+  /**
+   * Checks that broken parallel download doesn't change local file and doesn't leave temporary file.
+   * Fake server tells the size of the file, but closes connection instead of sending chunks
+   */
+  @Test
+  public void brokenParallelDownload() throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0);
+    Thread serverThread = new Thread(() -> {
+      while (true) {
+        try (Socket socket = serverSocket.accept()) {
+          DataInputStream in = new DataInputStream(socket.getInputStream());
+          DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+          while (true) {
+            in.readInt();
+            in.readUTF();
+            in.readLong();
+            long length = in.readLong();
+            out.writeLong(3 * 1024 * 1024);
+            out.writeLong(Math.min(length, 1024 * 1024));
+            if (length > 0) {
+              break;
+            }
+          }
+        } catch (IOException e) {
+          if (serverSocket.isClosed()) {
+            return;
+          }
+        }
+      }
+    });
+    serverThread.setDaemon(true);
+    serverThread.start();
+    File local = new File("brokenFile");
+    Files.write(local.toPath(), "old".getBytes());
+    try {
+      FTPClient.getFileParallel("localhost", serverSocket.getLocalPort(), "brokenFile", 2);
+      fail();
+    } catch (IOException ignored) {
+    } finally {
+      serverSocket.close();
+    }
+    assertEquals("old", new String(Files.readAllBytes(local.toPath())));
+    assertEquals(0, new File(".").listFiles((dir, name) -> name.startsWith("brokenFile") && name.endsWith(".tmp")).length);
+    local.delete();
+  }
+
   private InputStream getInputStreamWithList(List<FTPFile> files) throws IOException {
     ByteArrayOutputStream o = new ByteArrayOutputStream();
     DataOutputStream out = new DataOutputStream(o);
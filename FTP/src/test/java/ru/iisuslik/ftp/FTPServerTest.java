@@ -7,11 +7,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.File;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import static java.lang.Thread.sleep;
 import static org.junit.Assert.*;
@@ -79,6 +86,34 @@ public class FTPServerTest {
         byteOut.toByteArray());
   }
 
+  /**
+   * Checks that part of the file is sent with size of the whole file
+   */
+  @Test
+  public void fileRangeRequest() throws Exception {
+    ServerSocket serverSocket = mock(ServerSocket.class);
+    Socket socket = mock(Socket.class);
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    DataOutputStream requestOut = new DataOutputStream(request);
+    requestOut.writeInt(3);
+    requestOut.writeUTF("src/test/resources/testFile1");
+    requestOut.writeLong(2);
+    requestOut.writeLong(3);
+    when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(request.toByteArray()));
+    when(socket.getOutputStream()).thenReturn(byteOut);
+    when(socket.isConnected()).thenReturn(true).thenReturn(false);
+    when(serverSocket.accept()).thenReturn(socket).thenThrow(new IOException("Fake"));
+    (new FTPServer(serverSocket)).start();
+    sleep(100);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(byteOut.toByteArray()));
+    assertEquals(7, in.readLong());
+    assertEquals(3, in.readLong());
+    byte[] actual = new byte[3];
+    in.readFully(actual);
+    assertEquals("odb", new String(actual));
+  }
+
   /**
    * Checks that it returns 0 if there is no such directory
    */
@@ -115,6 +150,112 @@ public class FTPServerTest {
         byteOut.toByteArray());
   }
 
+  /**
+   * Checks that file is sent through real socket channel without changes and that download is resumed
+   */
+  @Test
+  public void fileRequestThroughChannel() throws Exception {
+    ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+    Thread serverThread = new Thread(() -> new FTPServer(serverSocket).start());
+    serverThread.setDaemon(true);
+    serverThread.start();
+    File source = File.createTempFile("ftpSource", ".bin");
+    File downloaded = new File(source.getName());
+    try {
+      byte[] data = new byte[3 * 1024 * 1024 + 7];
+      new Random(42).nextBytes(data);
+      Files.write(source.toPath(), data);
+      FTPClient client = new FTPClient("localhost", serverSocket.getLocalPort());
+      client.getFile(source.getPath());
+      assertArrayEquals(data, Files.readAllBytes(downloaded.toPath()));
+      Files.write(new File(source.getName() + ".part").toPath(), Arrays.copyOf(data, data.length / 3));
+      client.getFile(source.getPath());
+      assertArrayEquals(data, Files.readAllBytes(downloaded.toPath()));
+    } finally {
+      source.delete();
+      downloaded.delete();
+      serverSocket.close();
+    }
+  }
+
+  /**
+   * Checks that event loop server answers to several clients while many other clients are idle
+   */
+  @Test
+  public void eventLoopWithManyClients() throws Exception {
+    ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+    FTPServer server = new FTPServer(serverSocket);
+    try {
+      server.startEventLoop(0);
+      fail();
+    } catch (IllegalArgumentException ignored) {
+    }
+    Thread serverThread = new Thread(() -> server.startEventLoop(2));
+    serverThread.setDaemon(true);
+    serverThread.start();
+    List<Socket> idleClients = new ArrayList<>();
+    try {
+      for (int i = 0; i < 200; i++) {
+        idleClients.add(new Socket("localhost", serverSocket.getLocalPort()));
+      }
+      for (int i = 0; i < 3; i++) {
+        FTPClient client = new FTPClient("localhost", serverSocket.getLocalPort());
+        assertEquals(Arrays.asList(new FTPClient.FTPFile("testFile3", false),
+            new FTPClient.FTPFile("testFile4", false)), client.getList("src/test/resources/testDir"));
+        assertEquals(Arrays.asList(), client.getList("src/kek"));
+        client.getFile("src/test/resources/testFile1");
+        File downloaded = new File("testFile1");
+        assertEquals("Goodbye", new String(Files.readAllBytes(downloaded.toPath())));
+        downloaded.delete();
+        assertEquals("bye", new String(client.getSlice("src/test/resources/testFile1", 4, 100)));
+      }
+    } finally {
+      for (Socket socket : idleClients) {
+        socket.close();
+      }
+      server.stop();
+    }
+    serverThread.join(5000);
+    assertFalse(serverThread.isAlive());
+  }
+
+  /**
+   * Checks that server with virtual threads doesn't serve more connections than its max,
+   * next client is served when previous one disconnects and stop works when all the connections are taken
+   */
+  @Test
+  public void virtualThreadsWithMaxConnections() throws Exception {
+    ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+    FTPServer server = new FTPServer(serverSocket);
+    Thread serverThread = new Thread(() -> server.startVirtualThreads(1));
+    serverThread.setDaemon(true);
+    serverThread.start();
+    Socket first = new Socket("localhost", serverSocket.getLocalPort());
+    try (Socket second = new Socket("localhost", serverSocket.getLocalPort())) {
+      assertEquals(2, new FTPClient(first).getList("src/test/resources/testDir").size());
+      DataOutputStream out = new DataOutputStream(second.getOutputStream());
+      out.writeInt(1);
+      out.writeUTF("src/test/resources/testDir");
+      out.flush();
+      DataInputStream in = new DataInputStream(second.getInputStream());
+      second.setSoTimeout(300);
+      try {
+        in.readInt();
+        fail();
+      } catch (SocketTimeoutException ignored) {
+      }
+      first.close();
+      second.setSoTimeout(5000);
+      assertEquals(2, in.readInt());
+      server.stop();
+      serverThread.join(5000);
+      assertFalse(serverThread.isAlive());
+    } finally {
+      first.close();
+      server.stop();
+    }
+  }
+
   private InputStream getInputStream(int type, String path) throws IOException {
     ByteArrayOutputStream o = new ByteArrayOutputStream();
     DataOutputStream out = new DataOutputStream(o);
@@ -0,0 +1,80 @@
+package ru.iisuslik;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyed workload: every task updates the state of its key, tasks of one key come one after another.
+ * In AFFINITY_GROUPS mode tasks of one key are calculated by the same group, in other modes state
+ * of every key moves between all the cores. Run with -prof perfnorm to see cache misses per task
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AffinityBenchmark {
+    private static final int KEY_COUNT = 64;
+    private static final int STATE_SIZE = 512;
+    private static final int TASK_COUNT = 4096;
+
+    @Param({"4", "8"})
+    public int threads;
+
+    @Param({"SHARED_QUEUE", "WORK_STEALING", "AFFINITY_GROUPS"})
+    public SchedulingMode mode;
+
+    private ThreadPoolmpl<Long> pool;
+    private long[][] states;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = mode == SchedulingMode.AFFINITY_GROUPS
+                ? new ThreadPoolmpl<>(threads, threads) : new ThreadPoolmpl<>(threads, mode);
+        states = new long[KEY_COUNT][STATE_SIZE];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutDown();
+    }
+
+    /**
+     * Tasks of the same key aren't synchronized with each other, benchmark only shows where the state goes
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(TASK_COUNT)
+    public long keyedTasks() throws LightExecutionException {
+        List<LightFuture<Long>> futures = new ArrayList<>(TASK_COUNT);
+        for (int i = 0; i < TASK_COUNT; i++) {
+            int key = i % KEY_COUNT;
+            long[] state = states[key];
+            futures.add(pool.addTaskWithAffinity(key, () -> {
+                long sum = 0;
+                for (int j = 0; j < state.length; j++) {
+                    sum += ++state[j];
+                }
+                return sum;
+            }));
+        }
+        long sum = 0;
+        for (LightFuture<Long> future : futures) {
+            sum += future.get();
+        }
+        return sum;
+    }
+}
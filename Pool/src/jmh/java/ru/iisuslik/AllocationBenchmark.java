@@ -0,0 +1,76 @@
+package ru.iisuslik;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Compares allocation of usual and recycled tasks, run it with gradle jmh -PjmhArgs="AllocationBenchmark -prof gc"
+ * and look at gc.alloc.rate.norm, it's bytes per task
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AllocationBenchmark {
+    private static final int BATCH_SIZE = 100;
+    private static final Supplier<Integer> TASK = () -> 42;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private ThreadPoolmpl<Integer> pool;
+    private final LightFuture<?>[] futures = new LightFuture<?>[BATCH_SIZE];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ThreadPoolmpl<>(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutDown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int submit() throws LightExecutionException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            futures[i] = pool.submit(TASK);
+        }
+        return sum();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int submitRecycled() throws LightExecutionException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            futures[i] = pool.submitRecycled(TASK);
+        }
+        return sum();
+    }
+
+    private int sum() throws LightExecutionException {
+        int sum = 0;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            sum += (Integer) futures[i].get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,72 @@
+package ru.iisuslik;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tasks that spend their time blocked, like waiting for IO. Both modes may run the same count of
+ * tasks at once, in SHARED_QUEUE mode every one of them holds a platform thread, in VIRTUAL_THREADS
+ * mode a parked task only holds its virtual thread. Result is tasks per second
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BlockingBenchmark {
+    private static final int CONCURRENCY = 64;
+    private static final int TASK_COUNT = 1024;
+    private static final long BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    @Param({"SHARED_QUEUE", "VIRTUAL_THREADS"})
+    public SchedulingMode mode;
+
+    private ThreadPoolmpl<Long> pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ThreadPoolmpl<>(CONCURRENCY, mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutDown();
+    }
+
+    /**
+     * Every task parks for a few milliseconds, so best result is CONCURRENCY tasks per block time
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(TASK_COUNT)
+    public long blockingTasks() throws LightExecutionException {
+        List<LightFuture<Long>> futures = new ArrayList<>(TASK_COUNT);
+        for (int i = 0; i < TASK_COUNT; i++) {
+            futures.add(pool.addTask(() -> {
+                long start = System.nanoTime();
+                LockSupport.parkNanos(BLOCK_NANOS);
+                return System.nanoTime() - start;
+            }));
+        }
+        long sum = 0;
+        for (LightFuture<Long> future : futures) {
+            sum += future.get();
+        }
+        return sum;
+    }
+}
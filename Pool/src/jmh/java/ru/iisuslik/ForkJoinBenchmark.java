@@ -0,0 +1,115 @@
+package ru.iisuslik;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursive sum of array with fork and join, {@link ForkJoinPool} with the same thread count is the baseline
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ForkJoinBenchmark {
+    private static final int SIZE = 1 << 22;
+    private static final int THRESHOLD = 1 << 13;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"SHARED_QUEUE", "WORK_STEALING"})
+    public SchedulingMode mode;
+
+    private final long[] array = new long[SIZE];
+    private ThreadPoolmpl<Long> pool;
+    private ForkJoinPool forkJoinPool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE; i++) {
+            array[i] = random.nextInt(1000);
+        }
+        pool = new ThreadPoolmpl<>(threads, mode);
+        forkJoinPool = new ForkJoinPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutDown();
+        forkJoinPool.shutdown();
+    }
+
+    @Benchmark
+    public long threadPoolmpl() throws LightExecutionException {
+        return pool.join(pool.fork(() -> sum(0, SIZE)));
+    }
+
+    @Benchmark
+    public long forkJoinPool() {
+        return forkJoinPool.invoke(new SumTask(0, SIZE));
+    }
+
+    private long sum(int from, int to) {
+        if (to - from <= THRESHOLD) {
+            return sequentialSum(from, to);
+        }
+        int middle = (from + to) >>> 1;
+        LightFuture<Long> left = pool.fork(() -> sum(from, middle));
+        long right = sum(middle, to);
+        try {
+            return pool.join(left) + right;
+        } catch (LightExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long sequentialSum(int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += array[i];
+        }
+        return sum;
+    }
+
+    private class SumTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        private SumTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= THRESHOLD) {
+                return sequentialSum(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            SumTask left = new SumTask(from, middle);
+            left.fork();
+            return new SumTask(middle, to).compute() + left.join();
+        }
+    }
+}
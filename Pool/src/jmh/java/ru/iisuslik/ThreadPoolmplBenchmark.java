@@ -0,0 +1,168 @@
+package ru.iisuslik;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Benchmarks of ThreadPoolmpl for every scheduling mode and thread count.
+ * Run them with gradle jmh
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ThreadPoolmplBenchmark {
+    private static final int TASK_COUNT = 1000;
+    private static final int CHAIN_DEPTH = 100;
+    private static final int CPU_TASK_COUNT = 256;
+    private static final int CPU_TASK_ITERATIONS = 4096;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"SHARED_QUEUE", "WORK_STEALING", "PRIORITY", "VIRTUAL_THREADS"})
+    public SchedulingMode mode;
+
+    private ThreadPoolmpl<Integer> pool;
+    private List<Supplier<Integer>> tinyTasks;
+    private LightFuture<Integer> completed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ThreadPoolmpl<>(threads, mode);
+        tinyTasks = new ArrayList<>(TASK_COUNT);
+        for (int i = 0; i < TASK_COUNT; i++) {
+            int x = i;
+            tinyTasks.add(() -> x + 1);
+        }
+        completed = pool.addTask(() -> 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutDown();
+    }
+
+    /**
+     * Time from adding one task to getting its result
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int submitAndGet() throws LightExecutionException {
+        return pool.addTask(() -> 42).get();
+    }
+
+    /**
+     * Result of already completed task is read again and again
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int getAfterComplete() throws LightExecutionException {
+        return completed.get();
+    }
+
+    /**
+     * CPU-bound tasks of the same cost, a few microseconds each. Unlike tiny tasks they don't measure
+     * the queue, so tasks per second should grow nearly as thread count while there are free cores
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(CPU_TASK_COUNT)
+    public int cpuBound() throws LightExecutionException {
+        List<LightFuture<Integer>> futures = new ArrayList<>(CPU_TASK_COUNT);
+        for (int i = 0; i < CPU_TASK_COUNT; i++) {
+            int seed = i;
+            futures.add(pool.addTask(() -> hash(seed)));
+        }
+        int sum = 0;
+        for (LightFuture<Integer> future : futures) {
+            sum += future.get();
+        }
+        return sum;
+    }
+
+    /**
+     * Tiny tasks added one by one, result is tasks per second
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(TASK_COUNT)
+    public int tinyTasks() throws LightExecutionException {
+        List<LightFuture<Integer>> futures = new ArrayList<>(TASK_COUNT);
+        for (Supplier<Integer> task : tinyTasks) {
+            futures.add(pool.addTask(task));
+        }
+        int sum = 0;
+        for (LightFuture<Integer> future : futures) {
+            sum += future.get();
+        }
+        return sum;
+    }
+
+    /**
+     * The same tiny tasks with parallelMap, it creates one task for a chunk instead of one for an element
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(TASK_COUNT)
+    public List<Integer> parallelMapTinyTasks() throws LightExecutionException {
+        return pool.parallelMap(tinyTasks, Supplier::get);
+    }
+
+    /**
+     * Long chain of thenApply, every step goes through the pool's queue
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int thenApplyChain() throws LightExecutionException {
+        LightFuture<Integer> task = pool.addTask(() -> 0);
+        for (int i = 0; i < CHAIN_DEPTH; i++) {
+            task = task.thenApply(x -> x + 1);
+        }
+        return task.get();
+    }
+
+    /**
+     * Several producers add tasks to one pool at the same time
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(TASK_COUNT)
+    @Threads(4)
+    public int contendedSubmit() throws LightExecutionException {
+        return tinyTasks();
+    }
+
+    /**
+     * Fixed amount of work that JIT can't remove, result depends on every iteration
+     */
+    private static int hash(int seed) {
+        int x = seed;
+        for (int i = 0; i < CPU_TASK_ITERATIONS; i++) {
+            x = x * 1103515245 + 12345;
+            x ^= x >>> 16;
+        }
+        return x;
+    }
+}
@@ -0,0 +1,108 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free deque for every group of threads, see {@link SchedulingMode#AFFINITY_GROUPS}.
+ * Thread i belongs to group i % groupCount. Tasks with the same affinity always go to the same group,
+ * so their data stays in caches of that group's cores. Thread takes tasks of other groups only
+ * when its own group has nothing to do
+ */
+class AffinityTaskQueue implements TaskQueue {
+    private final List<ConcurrentLinkedDeque<Task<?>>> groups;
+    private final AtomicInteger nextGroup = new AtomicInteger();
+
+    AffinityTaskQueue(int groupCount) {
+        groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    /**
+     * Task with affinity goes to its group, other task goes to the group of adding thread
+     * or, if it's not pool thread, to the next group by turn
+     */
+    @Override
+    public void push(@NotNull Task<?> task, int worker) {
+        int group;
+        if (task.affinity >= 0) {
+            group = task.affinity % groups.size();
+        } else if (worker >= 0) {
+            group = worker % groups.size();
+        } else {
+            group = Math.floorMod(nextGroup.getAndIncrement(), groups.size());
+        }
+        groups.get(group).addLast(task);
+    }
+
+    @Override
+    public void pushAll(@NotNull List<? extends Task<?>> tasks, int worker) {
+        for (Task<?> task : tasks) {
+            push(task, worker);
+        }
+    }
+
+    /**
+     * Takes the oldest task of own group and steals from the other groups only if it's empty
+     */
+    @Override
+    public Task<?> poll(int worker) {
+        if (worker >= 0) {
+            Task<?> task = groups.get(worker % groups.size()).pollFirst();
+            if (task != null) {
+                return task;
+            }
+        }
+        return steal(worker + 1);
+    }
+
+    /**
+     * Newest task of own group is taken from the tail, other groups are still taken from the head
+     */
+    @Override
+    public Task<?> pollNewest(int worker) {
+        Task<?> task = groups.get(worker % groups.size()).pollLast();
+        return task != null ? task : steal(worker + 1);
+    }
+
+    @Override
+    public Task<?> pollOldest() {
+        return steal(nextGroup.get());
+    }
+
+    @Override
+    public boolean remove(@NotNull Task<?> task) {
+        for (ConcurrentLinkedDeque<Task<?>> group : groups) {
+            if (group.remove(task)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (ConcurrentLinkedDeque<Task<?>> group : groups) {
+            if (!group.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Task<?> steal(int first) {
+        for (int i = 0; i < groups.size(); i++) {
+            Task<?> task = groups.get(Math.floorMod(first + i, groups.size())).pollFirst();
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,50 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Task that completes with the list of results when all the tasks complete,
+ * or with the exception as soon as one of them fails. It never gets to the pool
+ *
+ * @param <T> Tasks' result type
+ */
+class AllOfTask<T> extends Task<List<T>> {
+    private final List<Task<? extends T>> parts;
+    private final AtomicInteger notCompleted;
+
+    AllOfTask(@NotNull ThreadPoolmpl<?> pool, @NotNull List<Task<? extends T>> parts) {
+        super(pool);
+        this.parts = parts;
+        notCompleted = new AtomicInteger(parts.size());
+        if (parts.isEmpty()) {
+            complete(new ArrayList<>(), null);
+        }
+        for (Task<? extends T> part : parts) {
+            part.addDependent(this);
+        }
+    }
+
+    @Override
+    boolean runTask() {
+        return false;
+    }
+
+    @Override
+    void dependencyCompleted(@NotNull Task<?> dependency) {
+        if (dependency.getException != null) {
+            complete(null, dependency.getException);
+            return;
+        }
+        if (notCompleted.decrementAndGet() == 0) {
+            List<T> results = new ArrayList<>(parts.size());
+            for (Task<? extends T> part : parts) {
+                results.add(part.result);
+            }
+            complete(results, null);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Task that completes the same way as the first completed task from the list. It never gets to the pool
+ *
+ * @param <T> Tasks' result type
+ */
+class AnyOfTask<T> extends Task<T> {
+    private final List<Task<? extends T>> parts;
+
+    AnyOfTask(@NotNull ThreadPoolmpl<?> pool, @NotNull List<Task<? extends T>> parts) {
+        super(pool);
+        this.parts = parts;
+        for (Task<? extends T> part : parts) {
+            part.addDependent(this);
+        }
+    }
+
+    @Override
+    boolean runTask() {
+        return false;
+    }
+
+    @Override
+    void dependencyCompleted(@NotNull Task<?> dependency) {
+        if (isReady()) {
+            return;
+        }
+        for (Task<? extends T> part : parts) {
+            if (part == dependency) {
+                complete(part.result, part.getException);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Realization of LightBatch, it's the same as allOf of the batch tasks
+ *
+ * @param <T> Tasks' result type
+ */
+class BatchTask<T> extends AllOfTask<T> implements LightBatch<T> {
+    private final List<LightFuture<T>> futures;
+
+    BatchTask(@NotNull ThreadPoolmpl<?> pool, @NotNull List<? extends Task<T>> tasks) {
+        super(pool, new ArrayList<>(tasks));
+        futures = Collections.unmodifiableList(tasks);
+    }
+
+    /**
+     * {@link LightBatch<T>#getFutures()}
+     */
+    @NotNull
+    @Override
+    public List<LightFuture<T>> getFutures() {
+        return futures;
+    }
+
+    /**
+     * {@link LightBatch<T>#size()}
+     */
+    @Override
+    public int size() {
+        return futures.size();
+    }
+}
@@ -0,0 +1,52 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Task that applies BiFunction to the results of two tasks, it gets to the pool when both of them complete
+ *
+ * @param <T> First task's result type
+ * @param <U> Second task's result type
+ * @param <R> BiFunction's returning type
+ */
+class CombineTask<T, U, R> extends Task<R> {
+    private final Task<T> first;
+    private final Task<U> second;
+    private final BiFunction<? super T, ? super U, ? extends R> func;
+    private final AtomicInteger notCompleted = new AtomicInteger(2);
+
+    CombineTask(@NotNull ThreadPoolmpl<?> pool, @NotNull Task<T> first, @NotNull Task<U> second,
+                @NotNull BiFunction<? super T, ? super U, ? extends R> func) {
+        super(pool);
+        this.first = first;
+        this.second = second;
+        this.func = func;
+        priority = Math.max(first.priority, second.priority);
+        affinity = first.affinity >= 0 ? first.affinity : second.affinity;
+    }
+
+    @Override
+    boolean runTask() {
+        R functionResult;
+        try {
+            functionResult = func.apply(first.get(), second.get());
+        } catch (Exception e) {
+            complete(null, e);
+            return true;
+        }
+        complete(functionResult, null);
+        return false;
+    }
+
+    @Override
+    void dependencyCompleted(@NotNull Task<?> dependency) {
+        if (dependency.isCancelled) {
+            cancel(false);
+        } else if (notCompleted.decrementAndGet() == 0) {
+            super.dependencyCompleted(dependency);
+        }
+    }
+}
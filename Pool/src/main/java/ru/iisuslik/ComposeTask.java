@@ -0,0 +1,56 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Function;
+
+/**
+ * Task that applies Function returning LightFuture to the result of parent task
+ * and then completes with the result of that LightFuture
+ *
+ * @param <T> Parent's result type
+ * @param <U> Result type of LightFuture returned by Function
+ */
+class ComposeTask<T, U> extends Task<U> {
+    private final Task<T> parent;
+    private final Function<? super T, ? extends LightFuture<U>> func;
+    private volatile Task<U> inner;
+
+    ComposeTask(@NotNull ThreadPoolmpl<?> pool, @NotNull Task<T> parent,
+                @NotNull Function<? super T, ? extends LightFuture<U>> func) {
+        super(pool);
+        this.parent = parent;
+        this.func = func;
+        priority = parent.priority;
+        affinity = parent.affinity;
+    }
+
+    @Override
+    boolean runTask() {
+        try {
+            inner = asTask(func.apply(parent.get()));
+        } catch (Exception e) {
+            complete(null, e);
+            return true;
+        }
+        inner.addDependent(this);
+        return false;
+    }
+
+    /**
+     * Parent's completion adds this task to the pool, inner task's completion completes this one.
+     * Cancel of parent or inner task cancels this one
+     */
+    @Override
+    void dependencyCompleted(@NotNull Task<?> dependency) {
+        if (inner == null) {
+            super.dependencyCompleted(dependency);
+        } else {
+            if (inner.isCancelled) {
+                cancel(false);
+            } else {
+                complete(inner.result, inner.getException);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Function;
+
+/**
+ * Task that applies Function to the result of parent task
+ *
+ * @param <T> Parent's result type
+ * @param <U> Function's returning type
+ */
+class FunctionTask<T, U> extends Task<U> {
+    private final Task<T> parent;
+    private final Function<? super T, ? extends U> func;
+
+    FunctionTask(@NotNull ThreadPoolmpl<?> pool, @NotNull Task<T> parent,
+                 @NotNull Function<? super T, ? extends U> func) {
+        super(pool);
+        this.parent = parent;
+        this.func = func;
+        priority = parent.priority;
+        affinity = parent.affinity;
+    }
+
+    /**
+     * FunctionTask gets to the pool only after parent completes, so parent.get() never waits here
+     */
+    @Override
+    boolean runTask() {
+        U functionResult;
+        try {
+            functionResult = func.apply(parent.get());
+        } catch (Exception e) {
+            complete(null, e);
+            return true;
+        }
+        complete(functionResult, null);
+        return false;
+    }
+}
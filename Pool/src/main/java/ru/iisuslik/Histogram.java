@@ -0,0 +1,64 @@
+package ru.iisuslik;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of times with power of two buckets, bucket i counts times in [2^i, 2^(i+1)) nanoseconds.
+ * Recording is one increment and one add, nothing is allocated
+ */
+class Histogram {
+    private static final int BUCKET_COUNT = 64;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 1);
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Upper bound of the bucket that contains given percentile, so result is precise up to two times
+     *
+     * @param percentile Number from 0 to 100
+     */
+    long getPercentile(double percentile) {
+        long[] snapshot = getBuckets();
+        long total = 0;
+        for (long bucket : snapshot) {
+            total += bucket;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    long[] getBuckets() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+        }
+        return snapshot;
+    }
+}
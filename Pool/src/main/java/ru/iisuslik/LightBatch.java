@@ -0,0 +1,29 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * LightFuture of the batch of tasks that were added to the pool together.
+ * It's ready when all the tasks of the batch are ready, its result is the list of their results.
+ * It fails as soon as one of the tasks fails
+ *
+ * @param <T> Tasks' result type
+ */
+public interface LightBatch<T> extends LightFuture<List<T>> {
+    /**
+     * Get LightFutures of the separate tasks
+     *
+     * @return LightFutures in the same order as Suppliers were given
+     */
+    @NotNull
+    List<LightFuture<T>> getFutures();
+
+    /**
+     * Get count of the tasks in batch
+     *
+     * @return Count of the tasks
+     */
+    int size();
+}
@@ -5,4 +5,13 @@ package ru.iisuslik;
  * This e will be added as suppressed exception to this LightExecutionException.
  */
 public class LightExecutionException extends Exception {
+    public LightExecutionException() {
+    }
+
+    /**
+     * Exception without stack trace, it's cheap to create, see {@link ThreadPoolmpl#submitRecycled}
+     */
+    LightExecutionException(boolean writableStackTrace) {
+        super(null, null, true, writableStackTrace);
+    }
 }
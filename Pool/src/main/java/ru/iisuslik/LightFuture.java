@@ -2,6 +2,9 @@ package ru.iisuslik;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 /**
@@ -17,21 +20,87 @@ public interface LightFuture<T> {
      */
     boolean isReady();
 
+    /**
+     * The function to check if task was skipped because its deadline passed before it was started.
+     * Expired task is ready, get() throws LightExecutionException
+     * with suppressed {@link java.util.concurrent.TimeoutException}
+     *
+     * @return True if this task is expired
+     */
+    boolean isExpired();
+
+    /**
+     * The function to check if task was cancelled before it completed
+     *
+     * @return True if this task is cancelled
+     */
+    boolean isCancelled();
+
+    /**
+     * Cancels the task if it isn't ready yet. Queued task is removed from the queue and never calculated,
+     * tasks created from this one by thenApply, thenCompose and thenCombine are cancelled too.
+     * Cancelled task is ready, get() throws LightExecutionException
+     * with suppressed {@link java.util.concurrent.CancellationException}
+     *
+     * @param mayInterruptIfRunning If task is already calculating, its thread is interrupted
+     * @return False if task was already ready
+     */
+    boolean cancel(boolean mayInterruptIfRunning);
+
     /**
      * Get result of running task
      *
      * @return Supplier or function result
      * @throws LightExecutionException It'll be thrown if Supplier or Function inside throw some Exception.
      *                                 This exception will be added to suppressed exceptions of LightExecutionException.
+     *                                 If waiting thread is interrupted, InterruptedException is added
+     *                                 and interrupt flag stays set
      */
     T get() throws LightExecutionException;
 
+    /**
+     * Get result of running task, waiting for it no longer than timeout
+     *
+     * @param timeout Max time to wait
+     * @param unit    Unit of timeout
+     * @return Supplier or function result
+     * @throws LightExecutionException The same as in {@link #get()}
+     * @throws TimeoutException        It'll be thrown if task isn't ready after timeout
+     */
+    T get(long timeout, @NotNull TimeUnit unit) throws LightExecutionException, TimeoutException;
+
     /**
      * Creates new LightFuture task that is Function inside, it will take as an argument the result of this task
-     * It will be calculated only after this task will be ready
+     * It will be added to the pool only after this task will be ready, so it doesn't take any thread while waiting
      *
      * @param func Function that will calculate returning LightFuture
+     * @param <U>  Function's returning type
      * @return Task with Function inside
      */
-    LightFuture<T> thenApply(@NotNull Function<T, T> func);
+    <U> LightFuture<U> thenApply(@NotNull Function<? super T, ? extends U> func);
+
+    /**
+     * Creates new LightFuture task that is Function returning LightFuture inside, it will take as an argument
+     * the result of this task. Returned task will be ready when LightFuture returned by Function will be ready
+     * and will have the same result
+     *
+     * @param func Function that will create next LightFuture, it should be created by ThreadPoolmpl
+     * @param <U>  Result type of LightFuture returned by Function
+     * @return Task that will have the same result as LightFuture returned by Function
+     */
+    <U> LightFuture<U> thenCompose(@NotNull Function<? super T, ? extends LightFuture<U>> func);
+
+    /**
+     * Creates new LightFuture task that is BiFunction inside, it will take as arguments the results of this task
+     * and other task. It will be added to the pool only after both tasks will be ready
+     *
+     * @param other Other task, it should be created by ThreadPoolmpl
+     * @param func  BiFunction that will calculate returning LightFuture
+     * @param <U>   Other task's result type
+     * @param <R>   BiFunction's returning type
+     * @return Task with BiFunction inside
+     * @throws IllegalArgumentException if other task wasn't created by ThreadPoolmpl
+     */
+    <U, R> LightFuture<R> thenCombine(@NotNull LightFuture<U> other,
+                                      @NotNull BiFunction<? super T, ? super U, ? extends R> func);
 }
@@ -0,0 +1,29 @@
+package ru.iisuslik;
+
+/**
+ * What ThreadPoolmpl does with new task when its task queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Thread that adds the task waits until there is space in the queue.
+     * Pool's own threads don't wait, they calculate the task themselves, otherwise they could wait for each other
+     */
+    BLOCK,
+
+    /**
+     * Thread that adds the task calculates it itself
+     */
+    CALLER_RUNS,
+
+    /**
+     * Adding throws {@link java.util.concurrent.RejectedExecutionException}
+     */
+    REJECT,
+
+    /**
+     * The oldest task in the queue is thrown away to make space for the new one,
+     * get() of thrown away task throws LightExecutionException
+     * with suppressed {@link java.util.concurrent.RejectedExecutionException}
+     */
+    DISCARD_OLDEST
+}
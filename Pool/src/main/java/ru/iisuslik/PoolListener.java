@@ -0,0 +1,44 @@
+package ru.iisuslik;
+
+/**
+ * Listener of ThreadPoolmpl's events, see {@link ThreadPoolmpl#addListener(PoolListener)}.
+ * Methods are called by pool's threads right in the hot path, so they have to be fast and must not throw.
+ * Worker is index of pool's thread or -1 if task is calculated by other thread
+ */
+public interface PoolListener {
+    /**
+     * Thread has taken the task and starts calculating it
+     *
+     * @param worker         Index of pool's thread
+     * @param queueWaitNanos Time that task spent in the queue
+     */
+    default void taskStarted(int worker, long queueWaitNanos) {
+    }
+
+    /**
+     * Thread has finished calculating the task
+     *
+     * @param worker   Index of pool's thread
+     * @param runNanos Time of calculation
+     * @param isFailed True if task completed with exception
+     */
+    default void taskFinished(int worker, long runNanos, boolean isFailed) {
+    }
+
+    /**
+     * Tasks were rejected or discarded because task queue was full
+     *
+     * @param count Count of rejected tasks
+     */
+    default void tasksRejected(int count) {
+    }
+
+    /**
+     * Thread has waited for tasks
+     *
+     * @param worker    Index of pool's thread
+     * @param idleNanos Time of waiting
+     */
+    default void workerIdle(int worker, long idleNanos) {
+    }
+}
@@ -0,0 +1,230 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of ThreadPoolmpl, every pool collects them all the time, see {@link ThreadPoolmpl#getMetrics()}.
+ * Counters are lock-free and nothing is allocated for a task, so collection is cheap.
+ * Busy ratio of thread is the part of its time spent on calculating tasks,
+ * slots of threads are reused by elastic pool, so ratio is counted for the slot
+ */
+public class PoolMetrics implements PoolListener, PoolMetricsMBean {
+    private final ThreadPoolmpl<?> pool;
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder failedTasks = new LongAdder();
+    private final LongAdder rejectedTasks = new LongAdder();
+    private final Histogram queueWaitTime = new Histogram();
+    private final Histogram runTime = new Histogram();
+    private final AtomicLongArray busyNanos;
+    private final AtomicLongArray idleNanos;
+    private volatile ObjectName objectName = null;
+
+    PoolMetrics(@NotNull ThreadPoolmpl<?> pool, int maximumPoolSize) {
+        this.pool = pool;
+        busyNanos = new AtomicLongArray(maximumPoolSize);
+        idleNanos = new AtomicLongArray(maximumPoolSize);
+    }
+
+    @Override
+    public void taskStarted(int worker, long queueWaitNanos) {
+        queueWaitTime.record(queueWaitNanos);
+    }
+
+    @Override
+    public void taskFinished(int worker, long runNanos, boolean isFailed) {
+        completedTasks.increment();
+        if (isFailed) {
+            failedTasks.increment();
+        }
+        runTime.record(runNanos);
+        if (worker >= 0) {
+            busyNanos.addAndGet(worker, runNanos);
+        }
+    }
+
+    @Override
+    public void tasksRejected(int count) {
+        rejectedTasks.add(count);
+    }
+
+    @Override
+    public void workerIdle(int worker, long idleNanos) {
+        this.idleNanos.addAndGet(worker, idleNanos);
+    }
+
+    /**
+     * Get count of tasks calculated by the pool, including failed ones
+     */
+    @Override
+    public long getCompletedTaskCount() {
+        return completedTasks.sum();
+    }
+
+    /**
+     * Get count of tasks that completed with exception
+     */
+    @Override
+    public long getFailedTaskCount() {
+        return failedTasks.sum();
+    }
+
+    /**
+     * Get count of tasks that were rejected or discarded because task queue was full
+     */
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTasks.sum();
+    }
+
+    /**
+     * {@link ThreadPoolmpl#getQueueSize()}
+     */
+    @Override
+    public int getQueueSize() {
+        return pool.getQueueSize();
+    }
+
+    /**
+     * {@link ThreadPoolmpl#getPoolSize()}
+     */
+    @Override
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    @Override
+    public long getMeanQueueWaitTime() {
+        return queueWaitTime.getMean();
+    }
+
+    @Override
+    public long getQueueWaitTimePercentile99() {
+        return getQueueWaitTimePercentile(99);
+    }
+
+    /**
+     * Get time that given percent of tasks waited in the queue, it's precise up to two times
+     *
+     * @param percentile Number from 0 to 100
+     * @return Time in nanoseconds
+     */
+    public long getQueueWaitTimePercentile(double percentile) {
+        return queueWaitTime.getPercentile(percentile);
+    }
+
+    /**
+     * Get histogram of time that tasks waited in the queue
+     *
+     * @return Counts of tasks, i-th count is for times from 2^i to 2^(i+1) nanoseconds
+     */
+    @NotNull
+    public long[] getQueueWaitTimeHistogram() {
+        return queueWaitTime.getBuckets();
+    }
+
+    @Override
+    public long getMeanRunTime() {
+        return runTime.getMean();
+    }
+
+    @Override
+    public long getRunTimePercentile99() {
+        return getRunTimePercentile(99);
+    }
+
+    /**
+     * Get time in which given percent of tasks were calculated, it's precise up to two times
+     *
+     * @param percentile Number from 0 to 100
+     * @return Time in nanoseconds
+     */
+    public long getRunTimePercentile(double percentile) {
+        return runTime.getPercentile(percentile);
+    }
+
+    /**
+     * Get histogram of tasks' calculation time
+     *
+     * @return Counts of tasks, i-th count is for times from 2^i to 2^(i+1) nanoseconds
+     */
+    @NotNull
+    public long[] getRunTimeHistogram() {
+        return runTime.getBuckets();
+    }
+
+    /**
+     * Get busy ratio of all the pool's threads together
+     *
+     * @return Number from 0 to 1, 0 if threads didn't do anything yet
+     */
+    @Override
+    public double getBusyRatio() {
+        long busy = 0;
+        long idle = 0;
+        for (int i = 0; i < busyNanos.length(); i++) {
+            busy += busyNanos.get(i);
+            idle += idleNanos.get(i);
+        }
+        return ratio(busy, idle);
+    }
+
+    /**
+     * Get busy ratio of every thread slot
+     *
+     * @return Numbers from 0 to 1, one for every slot up to maximum pool size
+     */
+    @NotNull
+    @Override
+    public double[] getWorkerBusyRatios() {
+        double[] ratios = new double[busyNanos.length()];
+        for (int i = 0; i < ratios.length; i++) {
+            ratios[i] = ratio(busyNanos.get(i), idleNanos.get(i));
+        }
+        return ratios;
+    }
+
+    /**
+     * Registers metrics in platform MBean server with name ru.iisuslik:type=ThreadPoolmpl,name=name.
+     * Pool unregisters them when it's shut down
+     *
+     * @param name Name of the pool
+     * @return Name of registered MBean
+     * @throws JMException If name is wrong or it's already registered
+     */
+    @NotNull
+    public synchronized ObjectName registerMBean(@NotNull String name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("Metrics are already registered as " + objectName);
+        }
+        ObjectName newName = new ObjectName("ru.iisuslik:type=ThreadPoolmpl,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+        objectName = newName;
+        return newName;
+    }
+
+    /**
+     * Removes metrics from platform MBean server, it does nothing if they aren't registered
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException ignored) {
+        }
+        objectName = null;
+    }
+
+    private static double ratio(long busy, long idle) {
+        return busy + idle == 0 ? 0 : (double) busy / (busy + idle);
+    }
+}
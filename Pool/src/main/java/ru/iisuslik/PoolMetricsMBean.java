@@ -0,0 +1,29 @@
+package ru.iisuslik;
+
+/**
+ * JMX interface of pool's metrics, see {@link PoolMetrics#registerMBean(String)}.
+ * All times are in nanoseconds
+ */
+public interface PoolMetricsMBean {
+    long getCompletedTaskCount();
+
+    long getFailedTaskCount();
+
+    long getRejectedTaskCount();
+
+    int getQueueSize();
+
+    int getPoolSize();
+
+    long getMeanQueueWaitTime();
+
+    long getQueueWaitTimePercentile99();
+
+    long getMeanRunTime();
+
+    long getRunTimePercentile99();
+
+    double getBusyRatio();
+
+    double[] getWorkerBusyRatios();
+}
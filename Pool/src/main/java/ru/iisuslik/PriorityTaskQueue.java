@@ -0,0 +1,82 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * One queue for all the threads ordered by priority, see {@link SchedulingMode#PRIORITY}.
+ * Tasks with bigger priority go first, tasks with the same priority go in earliest-deadline-first order,
+ * tasks without deadline go after them in the order they were added
+ */
+class PriorityTaskQueue implements TaskQueue {
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>(PriorityTaskQueue::compare);
+    private long nextSequence = 0;
+
+    @Override
+    public synchronized void push(@NotNull Task<?> task, int worker) {
+        task.sequence = nextSequence++;
+        tasks.add(task);
+    }
+
+    @Override
+    public synchronized void pushAll(@NotNull List<? extends Task<?>> tasks, int worker) {
+        for (Task<?> task : tasks) {
+            push(task, worker);
+        }
+    }
+
+    @Override
+    public synchronized Task<?> poll(int worker) {
+        return tasks.poll();
+    }
+
+    /**
+     * Priority is more important than recursion, so it's the same as poll
+     */
+    @Override
+    public synchronized Task<?> pollNewest(int worker) {
+        return tasks.poll();
+    }
+
+    /**
+     * Heap isn't ordered by time, so it looks through all the tasks, it's used only when the queue is full
+     */
+    @Override
+    public synchronized Task<?> pollOldest() {
+        Task<?> oldest = null;
+        for (Task<?> task : tasks) {
+            if (oldest == null || task.sequence < oldest.sequence) {
+                oldest = task;
+            }
+        }
+        if (oldest != null) {
+            tasks.remove(oldest);
+        }
+        return oldest;
+    }
+
+    @Override
+    public synchronized boolean remove(@NotNull Task<?> task) {
+        return tasks.remove(task);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    private static int compare(Task<?> first, Task<?> second) {
+        if (first.priority != second.priority) {
+            return Integer.compare(second.priority, first.priority);
+        }
+        if (first.hasDeadline != second.hasDeadline) {
+            return first.hasDeadline ? -1 : 1;
+        }
+        if (first.hasDeadline && first.deadlineNanos != second.deadlineNanos) {
+            return Long.compare(first.deadlineNanos - second.deadlineNanos, 0);
+        }
+        return Long.compare(first.sequence, second.sequence);
+    }
+}
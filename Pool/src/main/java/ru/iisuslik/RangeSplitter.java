@@ -0,0 +1,85 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Splits range of indexes into chunks and calculates them in the pool, see {@link ThreadPoolmpl#parallelMap}.
+ * With pool's own threads range is split recursively with fork and join: chunk is split in halves while
+ * it's bigger than target size and the queue doesn't already have a task for every thread, so busy pool
+ * gets bigger chunks. Virtual threads can't help in join, so in that mode range is split into fixed chunks at once.
+ * Only one task is created for a chunk, elements don't have their own LightFutures.
+ * Range can take the whole int, so its length and positions between chunks are counted in long
+ *
+ * @param <R> Result type of chunk
+ */
+class RangeSplitter<R> {
+    private static final int CHUNKS_PER_THREAD = 4;
+    private final ThreadPoolmpl<?> pool;
+    private final Chunk<R> chunk;
+    private final BinaryOperator<R> combiner;
+    private int targetSize;
+
+    /**
+     * Calculation of one chunk
+     */
+    interface Chunk<R> {
+        R apply(int from, int to);
+    }
+
+    RangeSplitter(@NotNull ThreadPoolmpl<?> pool, @NotNull Chunk<R> chunk, @NotNull BinaryOperator<R> combiner) {
+        this.pool = pool;
+        this.chunk = chunk;
+        this.combiner = combiner;
+    }
+
+    /**
+     * Calculates all the chunks of not empty range and combines their results in the order of the range
+     */
+    R invoke(int from, int to) throws LightExecutionException {
+        targetSize = (int) Math.max(1, ((long) to - from) / (pool.getMaximumPoolSize() * CHUNKS_PER_THREAD));
+        if (pool.hasOwnThreads()) {
+            return pool.join(pool.fork(() -> split(from, to)));
+        }
+        List<Supplier<R>> chunks = new ArrayList<>();
+        for (long start = from; start < to; start += targetSize) {
+            int chunkFrom = (int) start;
+            int chunkTo = (int) Math.min(to, start + targetSize);
+            chunks.add(() -> chunk.apply(chunkFrom, chunkTo));
+        }
+        List<R> results = pool.invokeAll(chunks);
+        R result = results.get(0);
+        for (int i = 1; i < results.size(); i++) {
+            result = combiner.apply(result, results.get(i));
+        }
+        return result;
+    }
+
+    private R split(int from, int to) {
+        if ((long) to - from <= targetSize || pool.getQueueSize() >= pool.getPoolSize()) {
+            return chunk.apply(from, to);
+        }
+        int middle = (int) (((long) from + to) >> 1);
+        LightFuture<R> left = pool.fork(() -> split(from, middle));
+        R right;
+        try {
+            right = split(middle, to);
+        } catch (RuntimeException e) {
+            left.cancel(false);
+            throw e;
+        }
+        try {
+            return combiner.apply(pool.join(left), right);
+        } catch (LightExecutionException e) {
+            Throwable cause = e.getSuppressed().length > 0 ? e.getSuppressed()[0] : e;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * LightFuture of {@link RecycledTask}, it's reused together with the task, so free task costs no allocation.
+ * It remembers generation of the task, so after the result is got it throws IllegalStateException
+ * until the task is submitted again
+ *
+ * @param <T> Task's result type
+ */
+class RecycledFuture<T> implements LightFuture<T> {
+    final RecycledTask<T> task;
+    int generation;
+
+    RecycledFuture(@NotNull RecycledTask<T> task) {
+        this.task = task;
+    }
+
+    /**
+     * Value is read before generation check, so if generation is the same, value belongs to this LightFuture
+     */
+    @Override
+    public boolean isReady() {
+        boolean isReady = task.isReady();
+        checkGeneration();
+        return isReady;
+    }
+
+    @Override
+    public boolean isExpired() {
+        synchronized (task) {
+            checkGeneration();
+            return task.isExpired();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (task) {
+            checkGeneration();
+            return task.isCancelled();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (task) {
+            checkGeneration();
+            return task.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Waits for the result outside task's monitor and releases the task
+     */
+    @Override
+    public T get() throws LightExecutionException {
+        checkGeneration();
+        task.await();
+        return getAndRelease();
+    }
+
+    /**
+     * Waits for the result no longer than timeout and releases the task if it's ready
+     */
+    @Override
+    public T get(long timeout, @NotNull TimeUnit unit) throws LightExecutionException, TimeoutException {
+        checkGeneration();
+        task.await(timeout, unit);
+        return getAndRelease();
+    }
+
+    @Override
+    public <U> LightFuture<U> thenApply(@NotNull Function<? super T, ? extends U> func) {
+        throw unsupported();
+    }
+
+    @Override
+    public <U> LightFuture<U> thenCompose(@NotNull Function<? super T, ? extends LightFuture<U>> func) {
+        throw unsupported();
+    }
+
+    @Override
+    public <U, R> LightFuture<R> thenCombine(@NotNull LightFuture<U> other,
+                                             @NotNull BiFunction<? super T, ? super U, ? extends R> func) {
+        throw unsupported();
+    }
+
+    /**
+     * Task is ready here, only one of the threads that waited for it gets the result
+     */
+    private T getAndRelease() throws LightExecutionException {
+        synchronized (task) {
+            checkGeneration();
+            try {
+                return task.getResult();
+            } finally {
+                task.release(generation);
+            }
+        }
+    }
+
+    private void checkGeneration() {
+        if (task.generation != generation) {
+            throw new IllegalStateException("Result of recycled task was already got");
+        }
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Recycled task can't be chained, its result can be got only once");
+    }
+}
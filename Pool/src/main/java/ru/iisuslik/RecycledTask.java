@@ -0,0 +1,84 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Supplier;
+
+/**
+ * Task that calculates Supplier and is reused after its result is got, see {@link ThreadPoolmpl#submitRecycled}.
+ * Generation grows every time task is released, so {@link RecycledFuture} can see that its result was already got.
+ * Generation is changed only under task's monitor. Released task goes back to the cache of the thread that created it
+ *
+ * @param <T> Supplier's returning type
+ */
+class RecycledTask<T> extends Task<T> {
+    final RecycledFuture<T> future = new RecycledFuture<>(this);
+    private final RecycledTaskCache cache;
+    private Supplier<? extends T> func;
+    private Exception failureCause = null;
+    private LightExecutionException failure = null;
+    volatile int generation = 0;
+    /**
+     * Next task in the stack of returned tasks, see {@link RecycledTaskCache}
+     */
+    RecycledTask<?> nextReturned = null;
+
+    RecycledTask(@NotNull ThreadPoolmpl<?> pool, @NotNull RecycledTaskCache cache) {
+        super(pool);
+        this.cache = cache;
+    }
+
+    /**
+     * Prepares task and its LightFuture for the next Supplier
+     */
+    void reuse(@NotNull Supplier<? extends T> func) {
+        reset();
+        this.func = func;
+        future.generation = generation;
+    }
+
+    @Override
+    boolean runTask() {
+        T supplierResult;
+        try {
+            supplierResult = func.get();
+        } catch (Exception e) {
+            complete(null, e);
+            return true;
+        }
+        complete(supplierResult, null);
+        return false;
+    }
+
+    /**
+     * Exception without stack trace, so failed task costs only one small object.
+     * It's kept while Supplier throws the same exception, so preallocated exception costs nothing
+     */
+    @Override
+    T getResult() throws LightExecutionException {
+        if (getException != null) {
+            if (failureCause != getException) {
+                failure = new LightExecutionException(false);
+                failure.addSuppressed(getException);
+                failureCause = getException;
+            }
+            throw failure;
+        }
+        return result;
+    }
+
+    /**
+     * Releases ready task of given generation, after this it can be taken for the next Supplier.
+     * It's called under task's monitor
+     */
+    void release(int generation) {
+        if (this.generation != generation || !isReady()) {
+            return;
+        }
+        this.generation = generation + 1;
+        func = null;
+        result = null;
+        getException = null;
+        cache.recycle(this);
+    }
+}
@@ -0,0 +1,58 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Free recycled tasks of one submitting thread, see {@link ThreadPoolmpl#submitRecycled}.
+ * Only the owner takes tasks, but the result is often got by another thread, so any thread can return them.
+ * Other threads push returned tasks to the lock-free stack and the owner takes the whole stack at once
+ * when its own tasks end, so there is no ABA and nothing is allocated on both sides
+ */
+class RecycledTaskCache {
+    private static final int MAX_TASKS = 1024;
+    private final Thread owner = Thread.currentThread();
+    private final ArrayDeque<RecycledTask<?>> tasks = new ArrayDeque<>();
+    private final AtomicReference<RecycledTask<?>> returned = new AtomicReference<>();
+
+    /**
+     * Takes free task, it's called only by the owner
+     *
+     * @return Free task or null if there are no free tasks
+     */
+    RecycledTask<?> poll() {
+        if (tasks.isEmpty()) {
+            RecycledTask<?> task = returned.getAndSet(null);
+            while (task != null) {
+                RecycledTask<?> next = task.nextReturned;
+                task.nextReturned = null;
+                if (tasks.size() < MAX_TASKS) {
+                    tasks.addLast(task);
+                }
+                task = next;
+            }
+        }
+        return tasks.pollLast();
+    }
+
+    /**
+     * Returns released task from any thread
+     */
+    void recycle(@NotNull RecycledTask<?> task) {
+        if (Thread.currentThread() == owner) {
+            if (tasks.size() < MAX_TASKS) {
+                tasks.addLast(task);
+            }
+            return;
+        }
+        while (true) {
+            RecycledTask<?> head = returned.get();
+            task.nextReturned = head;
+            if (returned.compareAndSet(head, task)) {
+                return;
+            }
+        }
+    }
+}
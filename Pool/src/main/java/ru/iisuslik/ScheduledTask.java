@@ -0,0 +1,64 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Supplier;
+
+/**
+ * Task that gets to the pool after delay, see {@link ThreadPoolmpl#schedule}.
+ * Periodic task goes back to the timer after every run, it's ready only when it fails or is cancelled
+ *
+ * @param <T> Supplier's returning type
+ */
+class ScheduledTask<T> extends Task<T> {
+    private final Supplier<? extends T> func;
+    private final long periodNanos;
+    long timeNanos;
+    /**
+     * Task is in the heap of the timer and it's not removed, guarded by the timer
+     */
+    boolean isInTimer = false;
+
+    /**
+     * @param delayNanos  Time from now to the first run
+     * @param periodNanos Time between starts of runs or 0 if task runs once
+     */
+    ScheduledTask(@NotNull ThreadPoolmpl<?> pool, @NotNull Supplier<? extends T> func,
+                  long delayNanos, long periodNanos) {
+        super(pool);
+        this.func = func;
+        this.periodNanos = periodNanos;
+        timeNanos = System.nanoTime() + delayNanos;
+    }
+
+    @Override
+    boolean runTask() {
+        T supplierResult;
+        try {
+            supplierResult = func.get();
+        } catch (Exception e) {
+            complete(null, e);
+            return true;
+        }
+        if (periodNanos == 0) {
+            complete(supplierResult, null);
+            return false;
+        }
+        timeNanos += periodNanos;
+        pool.schedule(this);
+        return false;
+    }
+
+    /**
+     * Cancelled task is removed from the timer too, so cancelled timers don't take memory.
+     * If it's cancelled while it runs, timer doesn't take it back
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!super.cancel(mayInterruptIfRunning)) {
+            return false;
+        }
+        pool.unschedule(this);
+        return true;
+    }
+}
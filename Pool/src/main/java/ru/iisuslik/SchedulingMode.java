@@ -0,0 +1,44 @@
+package ru.iisuslik;
+
+/**
+ * The way ThreadPoolmpl hands tasks to its threads
+ */
+public enum SchedulingMode {
+    /**
+     * All threads take tasks from one common queue in the order they were added
+     */
+    SHARED_QUEUE,
+
+    /**
+     * Every thread owns a deque of tasks. Tasks that are added from pool threads (for example thenApply
+     * continuations) go to the deque of that thread, tasks from other threads are spread between deques.
+     * Thread that has nothing to do steals tasks from the deques of other threads.
+     * Thread takes the newest task of its own deque and steals the oldest ones, that's best for
+     * recursive tasks, see {@link ThreadPoolmpl#fork(java.util.function.Supplier)}
+     */
+    WORK_STEALING,
+
+    /**
+     * All threads take tasks from one common queue ordered by tasks' priority, tasks with the same priority
+     * are ordered by deadline, see {@link ThreadPoolmpl#submit(java.util.function.Supplier, int, long,
+     * java.util.concurrent.TimeUnit)}. In other modes priority is ignored, but deadline still works
+     */
+    PRIORITY,
+
+    /**
+     * Threads are split into groups, every group has its own queue. Tasks with the same affinity key
+     * always go to the same group, see {@link ThreadPoolmpl#submitWithAffinity(Object, java.util.function.Supplier)},
+     * and their continuations stay there too. Thread takes tasks of other groups only when its own group
+     * has nothing to do, so data of related tasks isn't moved between caches of all the cores.
+     * By default there are 4 threads in a group, see {@link ThreadPoolmpl#ThreadPoolmpl(int, int)}
+     */
+    AFFINITY_GROUPS,
+
+    /**
+     * Pool doesn't have its own threads, every task is calculated on new virtual thread, that's good for tasks
+     * that spend most of the time blocked in I/O. Thread count limits how many tasks are calculated at the same time,
+     * other tasks wait in one shared queue. Virtual threads need Java 21, on older JVMs every task gets
+     * new platform thread
+     */
+    VIRTUAL_THREADS
+}
@@ -0,0 +1,49 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * One FIFO queue for all the threads, see {@link SchedulingMode#SHARED_QUEUE}.
+ * Queue's monitor is taken only to add or take task
+ */
+class SharedTaskQueue implements TaskQueue {
+    private final ArrayDeque<Task<?>> tasks = new ArrayDeque<>();
+
+    @Override
+    public synchronized void push(@NotNull Task<?> task, int worker) {
+        tasks.addLast(task);
+    }
+
+    @Override
+    public synchronized void pushAll(@NotNull List<? extends Task<?>> tasks, int worker) {
+        this.tasks.addAll(tasks);
+    }
+
+    @Override
+    public synchronized Task<?> poll(int worker) {
+        return tasks.pollFirst();
+    }
+
+    @Override
+    public synchronized Task<?> pollNewest(int worker) {
+        return tasks.pollLast();
+    }
+
+    @Override
+    public synchronized Task<?> pollOldest() {
+        return tasks.pollFirst();
+    }
+
+    @Override
+    public synchronized boolean remove(@NotNull Task<?> task) {
+        return tasks.remove(task);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+}
@@ -0,0 +1,106 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free deque for every thread, see {@link SchedulingMode#WORK_STEALING}.
+ * Own deque is taken from the tail, so the last forked subtask is calculated first while its data is in cache,
+ * and thieves take from the head, so they get the oldest and usually the biggest tasks
+ */
+class StealingTaskQueue implements TaskQueue {
+    private final List<ConcurrentLinkedDeque<Task<?>>> deques;
+    private final AtomicInteger nextDeque = new AtomicInteger();
+
+    StealingTaskQueue(int threadCount) {
+        deques = new ArrayList<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            deques.add(new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    @Override
+    public void push(@NotNull Task<?> task, int worker) {
+        int index = worker >= 0 ? worker : Math.floorMod(nextDeque.getAndIncrement(), deques.size());
+        deques.get(index).addLast(task);
+    }
+
+    /**
+     * Batch from pool thread goes to its deque, other batches are split into one chunk per deque,
+     * every chunk is appended with one addAll
+     */
+    @Override
+    public void pushAll(@NotNull List<? extends Task<?>> tasks, int worker) {
+        if (worker >= 0) {
+            deques.get(worker).addAll(tasks);
+            return;
+        }
+        int chunkSize = (tasks.size() + deques.size() - 1) / deques.size();
+        int first = nextDeque.getAndIncrement();
+        for (int i = 0, start = 0; start < tasks.size(); i++, start += chunkSize) {
+            ConcurrentLinkedDeque<Task<?>> deque = deques.get(Math.floorMod(first + i, deques.size()));
+            deque.addAll(tasks.subList(start, Math.min(start + chunkSize, tasks.size())));
+        }
+    }
+
+    /**
+     * Takes task from own deque and steals from the others if it's empty
+     */
+    @Override
+    public Task<?> poll(int worker) {
+        if (worker >= 0) {
+            Task<?> task = deques.get(worker).pollLast();
+            if (task != null) {
+                return task;
+            }
+        }
+        return steal(worker + 1);
+    }
+
+    /**
+     * Own deque is already taken from the tail
+     */
+    @Override
+    public Task<?> pollNewest(int worker) {
+        return poll(worker);
+    }
+
+    @Override
+    public Task<?> pollOldest() {
+        return steal(nextDeque.get());
+    }
+
+    @Override
+    public boolean remove(@NotNull Task<?> task) {
+        for (ConcurrentLinkedDeque<Task<?>> deque : deques) {
+            if (deque.remove(task)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (ConcurrentLinkedDeque<Task<?>> deque : deques) {
+            if (!deque.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Task<?> steal(int first) {
+        for (int i = 0; i < deques.size(); i++) {
+            Task<?> task = deques.get(Math.floorMod(first + i, deques.size())).pollFirst();
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+}
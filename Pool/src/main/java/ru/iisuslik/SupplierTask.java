@@ -0,0 +1,32 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Supplier;
+
+/**
+ * Task that calculates Supplier
+ *
+ * @param <T> Supplier's returning type
+ */
+class SupplierTask<T> extends Task<T> {
+    private final Supplier<? extends T> func;
+
+    SupplierTask(@NotNull ThreadPoolmpl<?> pool, @NotNull Supplier<? extends T> func) {
+        super(pool);
+        this.func = func;
+    }
+
+    @Override
+    boolean runTask() {
+        T supplierResult;
+        try {
+            supplierResult = func.get();
+        } catch (Exception e) {
+            complete(null, e);
+            return true;
+        }
+        complete(supplierResult, null);
+        return false;
+    }
+}
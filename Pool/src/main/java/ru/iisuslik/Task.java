@@ -0,0 +1,520 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Base class for all the LightFuture realizations of ThreadPoolmpl.
+ * Task knows tasks that depend on it and notifies them when it completes.
+ * Completion is lock-free: state word is changed by CAS, waiting threads and dependents
+ * are kept in lock-free stacks, so get() of completed task is only one volatile read
+ *
+ * @param <T> Type of task's result
+ */
+abstract class Task<T> implements LightFuture<T> {
+    private static final int NEW = 0;
+    private static final int COMPLETING = 1;
+    private static final int INTERRUPTING = 2;
+    private static final int READY = 3;
+
+    /**
+     * How many times waiting thread checks the state before it parks
+     */
+    private static final int SPIN_COUNT = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 7 : 0;
+
+    /**
+     * Head of the stack of completed task, nothing can be pushed after it
+     */
+    private static final Node COMPLETED = new Node(null, null);
+
+    /**
+     * Dependents of tasks completed by current thread that aren't notified yet, see {@link #finish()}
+     */
+    private static final ThreadLocal<Notifications> NOTIFICATIONS = ThreadLocal.withInitial(Notifications::new);
+
+    private static final AtomicIntegerFieldUpdater<Task<?>> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(taskClass(), "state");
+    private static final AtomicReferenceFieldUpdater<Task<?>, Node> WAITERS =
+            AtomicReferenceFieldUpdater.newUpdater(taskClass(), Node.class, "waiters");
+    private static final AtomicReferenceFieldUpdater<Task<?>, Node> DEPENDENTS =
+            AtomicReferenceFieldUpdater.newUpdater(taskClass(), Node.class, "dependents");
+    private static final AtomicReferenceFieldUpdater<Task<?>, Thread> RUNNER =
+            AtomicReferenceFieldUpdater.newUpdater(taskClass(), Thread.class, "runner");
+
+    final ThreadPoolmpl<?> pool;
+    T result;
+    Exception getException = null;
+    boolean isExpired = false;
+    boolean isCancelled = false;
+    boolean isQueued = false;
+    int priority = 0;
+    int affinity = -1;
+    boolean hasDeadline = false;
+    long deadlineNanos;
+    long sequence;
+    long queuedNanos;
+    private volatile int state = NEW;
+    private volatile Node waiters = null;
+    private volatile Node dependents = null;
+    private volatile Thread runner = null;
+
+    Task(@NotNull ThreadPoolmpl<?> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * {@link LightFuture<T>#isReady()}
+     * Result and flags are written before the state, so they can be read after this returned true
+     */
+    @Override
+    public boolean isReady() {
+        return state == READY;
+    }
+
+    /**
+     * {@link LightFuture<T>#isExpired()}
+     */
+    @Override
+    public boolean isExpired() {
+        return isReady() && isExpired;
+    }
+
+    /**
+     * {@link LightFuture<T>#isCancelled()}
+     */
+    @Override
+    public boolean isCancelled() {
+        return isReady() && isCancelled;
+    }
+
+    /**
+     * {@link LightFuture<T>#cancel(boolean)}
+     * While interrupt is sent, state is INTERRUPTING and running thread doesn't leave the task,
+     * so interrupt can't get to the next task of the thread. Runner is taken from the task before
+     * it's interrupted, that's how running thread knows that interrupt was sent to it
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!STATE.compareAndSet(this, NEW, mayInterruptIfRunning ? INTERRUPTING : COMPLETING)) {
+            return false;
+        }
+        isCancelled = true;
+        getException = new CancellationException("Task was cancelled");
+        if (mayInterruptIfRunning) {
+            Thread thread = runner;
+            if (thread != null && RUNNER.compareAndSet(this, thread, null)) {
+                thread.interrupt();
+            }
+        }
+        finish();
+        if (isQueued) {
+            pool.remove(this);
+        }
+        return true;
+    }
+
+    /**
+     * {@link LightFuture<T>#get()}
+     */
+    @Override
+    public T get() throws LightExecutionException {
+        if (state != READY) {
+            await();
+        }
+        return getResult();
+    }
+
+    /**
+     * {@link LightFuture<T>#get(long, TimeUnit)}
+     */
+    @Override
+    public T get(long timeout, @NotNull TimeUnit unit) throws LightExecutionException, TimeoutException {
+        if (state != READY) {
+            await(timeout, unit);
+        }
+        return getResult();
+    }
+
+    /**
+     * {@link LightFuture<T>#thenApply(Function)}
+     */
+    @Override
+    public <U> LightFuture<U> thenApply(@NotNull Function<? super T, ? extends U> func) {
+        return addDependent(new FunctionTask<>(pool, this, func));
+    }
+
+    /**
+     * {@link LightFuture<T>#thenCompose(Function)}
+     */
+    @Override
+    public <U> LightFuture<U> thenCompose(@NotNull Function<? super T, ? extends LightFuture<U>> func) {
+        return addDependent(new ComposeTask<>(pool, this, func));
+    }
+
+    /**
+     * {@link LightFuture<T>#thenCombine(LightFuture, BiFunction)}
+     */
+    @Override
+    public <U, R> LightFuture<R> thenCombine(@NotNull LightFuture<U> other,
+                                             @NotNull BiFunction<? super T, ? super U, ? extends R> func) {
+        Task<U> otherTask = asTask(other);
+        CombineTask<T, U, R> task = new CombineTask<>(pool, this, otherTask, func);
+        addDependent(task);
+        otherTask.addDependent(task);
+        return task;
+    }
+
+    /**
+     * Calculates the task, it's called by pool's thread
+     *
+     * @return True if calculation failed with exception
+     */
+    abstract boolean runTask();
+
+    /**
+     * Calculates the task if it isn't ready yet, cancelled task is never started.
+     * While task is calculating, its thread can be interrupted by cancel, such interrupt is cleared
+     * before the thread leaves the task. Ready task can be reused by other thread right away,
+     * see {@link RecycledTask}, so runner is cleared only if it's still this thread
+     * and outcome is returned instead of being read from the task
+     *
+     * @return True if this call calculated the task and calculation failed
+     */
+    boolean run() {
+        if (state != NEW) {
+            return false;
+        }
+        Thread current = Thread.currentThread();
+        runner = current;
+        boolean isFailed = false;
+        try {
+            if (state == NEW) {
+                isFailed = runTask();
+            }
+        } finally {
+            if (!RUNNER.compareAndSet(this, current, null)) {
+                while (state == INTERRUPTING) {
+                    Thread.yield();
+                }
+                Thread.interrupted();
+            }
+        }
+        return isFailed;
+    }
+
+    /**
+     * Waits until task is ready
+     *
+     * @throws LightExecutionException If thread was interrupted, interrupt is suppressed in it
+     */
+    void await() throws LightExecutionException {
+        try {
+            awaitDone(false, 0);
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        }
+    }
+
+    /**
+     * Waits until task is ready no longer than timeout
+     *
+     * @throws LightExecutionException If thread was interrupted, interrupt is suppressed in it
+     * @throws TimeoutException        If task isn't ready after timeout
+     */
+    void await(long timeout, @NotNull TimeUnit unit) throws LightExecutionException, TimeoutException {
+        try {
+            if (!awaitDone(true, unit.toNanos(timeout))) {
+                throw new TimeoutException("Task isn't ready after " + timeout + " " + unit);
+            }
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        }
+    }
+
+    /**
+     * Makes task new again, so it can be reused, see {@link RecycledTask}.
+     * Nobody can see the task while it's reset
+     */
+    void reset() {
+        result = null;
+        getException = null;
+        isExpired = false;
+        isCancelled = false;
+        isQueued = false;
+        priority = 0;
+        affinity = -1;
+        hasDeadline = false;
+        waiters = null;
+        dependents = null;
+        state = NEW;
+    }
+
+    /**
+     * Sets deadline, task that isn't started before it will be skipped
+     *
+     * @param timeoutNanos Time from now to the deadline
+     */
+    void setDeadline(long timeoutNanos) {
+        hasDeadline = true;
+        deadlineNanos = System.nanoTime() + timeoutNanos;
+    }
+
+    /**
+     * If deadline is passed, completes task as expired
+     *
+     * @return True if task is expired and shouldn't be calculated
+     */
+    boolean expireIfLate() {
+        if (!hasDeadline || System.nanoTime() - deadlineNanos < 0) {
+            return false;
+        }
+        if (STATE.compareAndSet(this, NEW, COMPLETING)) {
+            isExpired = true;
+            getException = new TimeoutException("Deadline passed before task was started");
+            finish();
+        }
+        return true;
+    }
+
+    /**
+     * Registers task that will be notified when this task completes.
+     * If this task is already ready, it's notified right away
+     *
+     * @param task Dependent task
+     * @return The same dependent task
+     */
+    <D extends Task<?>> D addDependent(@NotNull D task) {
+        Node node = new Node(task, null);
+        while (true) {
+            Node head = dependents;
+            if (head == COMPLETED) {
+                task.dependencyCompleted(this);
+                return task;
+            }
+            node.next = head;
+            if (DEPENDENTS.compareAndSet(this, head, node)) {
+                return task;
+            }
+        }
+    }
+
+    /**
+     * Is called when one of the tasks this task depends on completes.
+     * By default task is added to the pool then, or it's cancelled if dependency was cancelled
+     *
+     * @param dependency Completed task
+     */
+    void dependencyCompleted(@NotNull Task<?> dependency) {
+        if (dependency.isCancelled) {
+            cancel(false);
+        } else if (state == NEW) {
+            pool.execute(this);
+        }
+    }
+
+    /**
+     * Saves result, wakes up waiting threads and notifies all the tasks that depend on this one.
+     * It does nothing if task is already ready
+     *
+     * @return True if this call completed the task
+     */
+    boolean complete(T result, Exception exception) {
+        if (!STATE.compareAndSet(this, NEW, COMPLETING)) {
+            return false;
+        }
+        this.result = result;
+        getException = exception;
+        finish();
+        return true;
+    }
+
+    /**
+     * Makes task ready after result is written, only the thread that moved task from NEW state calls it.
+     * Stacks are closed before state is READY, because ready task can be released and reused right away.
+     * Dependents are notified in the order they were added. Notified dependent can complete too, then
+     * its dependents are put to the queue of current thread and notified by the outer call of finish,
+     * so cancel or rejection of a long chain doesn't go deeper into the stack with every task
+     */
+    private void finish() {
+        Node waiting = WAITERS.getAndSet(this, COMPLETED);
+        Node added = DEPENDENTS.getAndSet(this, COMPLETED);
+        state = READY;
+        for (Node node = waiting; node != null; node = node.next) {
+            Thread thread = node.thread;
+            if (thread != null) {
+                node.thread = null;
+                LockSupport.unpark(thread);
+            }
+        }
+        if (added == null) {
+            return;
+        }
+        Node reversed = null;
+        for (Node node = added; node != null; ) {
+            Node next = node.next;
+            node.next = reversed;
+            reversed = node;
+            node = next;
+        }
+        Notifications notifications = NOTIFICATIONS.get();
+        notifications.add(this, reversed);
+        if (notifications.isNotifying) {
+            return;
+        }
+        notifications.isNotifying = true;
+        try {
+            while (!notifications.dependencies.isEmpty()) {
+                Task<?> dependency = notifications.dependencies.poll();
+                for (Node node = notifications.dependents.poll(); node != null; node = node.next) {
+                    node.task.dependencyCompleted(dependency);
+                }
+            }
+        } finally {
+            notifications.isNotifying = false;
+            notifications.dependencies.clear();
+            notifications.dependents.clear();
+        }
+    }
+
+    /**
+     * Spins a little and then parks until task is ready
+     *
+     * @return False if task isn't ready after timeout
+     */
+    private boolean awaitDone(boolean isTimed, long nanos) throws InterruptedException {
+        for (int i = 0; i < SPIN_COUNT; i++) {
+            if (state == READY) {
+                return true;
+            }
+        }
+        long deadline = isTimed ? System.nanoTime() + nanos : 0;
+        Node node = null;
+        while (state != READY) {
+            if (Thread.interrupted()) {
+                leave(node);
+                throw new InterruptedException();
+            }
+            if (node == null) {
+                node = new Node(null, Thread.currentThread());
+                if (!pushWaiter(node)) {
+                    while (state != READY) {
+                        Thread.yield();
+                    }
+                    return true;
+                }
+                continue;
+            }
+            if (isTimed) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    leave(node);
+                    return state == READY;
+                }
+                LockSupport.parkNanos(this, left);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return False if task is completing and node wasn't pushed, state becomes READY very soon then
+     */
+    private boolean pushWaiter(@NotNull Node node) {
+        while (true) {
+            Node head = waiters;
+            if (head == COMPLETED) {
+                return false;
+            }
+            node.next = head;
+            if (WAITERS.compareAndSet(this, head, node)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Thread that stops waiting isn't unparked later, node itself stays in the stack until completion
+     */
+    private static void leave(Node node) {
+        if (node != null) {
+            node.thread = null;
+        }
+    }
+
+    /**
+     * Returns result of ready task or throws its exception
+     */
+    T getResult() throws LightExecutionException {
+        if (getException != null) {
+            LightExecutionException e = new LightExecutionException();
+            e.addSuppressed(getException);
+            throw e;
+        }
+        return result;
+    }
+
+    private static LightExecutionException interrupted(@NotNull InterruptedException cause) {
+        Thread.currentThread().interrupt();
+        LightExecutionException e = new LightExecutionException();
+        e.addSuppressed(cause);
+        return e;
+    }
+
+    /**
+     * Class literal can't have type arguments, so field updaters get Task class through this cast
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<Task<?>> taskClass() {
+        return (Class<Task<?>>) (Class<?>) Task.class;
+    }
+
+    /**
+     * Every LightFuture in this package is a Task, other realizations can't be combined with it
+     */
+    static <U> Task<U> asTask(@NotNull LightFuture<U> future) {
+        if (!(future instanceof Task)) {
+            throw new IllegalArgumentException("LightFuture has to be created by ThreadPoolmpl");
+        }
+        return (Task<U>) future;
+    }
+
+    /**
+     * Queue of completed tasks with lists of their dependents, the thread that completes the first task
+     * notifies dependents of all of them one by one
+     */
+    private static final class Notifications {
+        final ArrayDeque<Task<?>> dependencies = new ArrayDeque<>();
+        final ArrayDeque<Node> dependents = new ArrayDeque<>();
+        boolean isNotifying = false;
+
+        void add(@NotNull Task<?> dependency, @NotNull Node dependents) {
+            dependencies.add(dependency);
+            this.dependents.add(dependents);
+        }
+    }
+
+    /**
+     * Node of lock-free stack, it keeps waiting thread or dependent task
+     */
+    private static final class Node {
+        final Task<?> task;
+        volatile Thread thread;
+        Node next;
+
+        Node(Task<?> task, Thread thread) {
+            this.task = task;
+            this.thread = thread;
+        }
+    }
+}
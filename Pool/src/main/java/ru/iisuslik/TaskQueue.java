@@ -0,0 +1,67 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Queue of tasks that are ready to be calculated. It only stores tasks,
+ * ThreadPoolmpl counts them and wakes up its threads itself
+ */
+interface TaskQueue {
+    /**
+     * Adds task to the queue
+     *
+     * @param task   Task to add
+     * @param worker Index of pool thread that adds the task or -1 if it's not pool thread
+     */
+    void push(@NotNull Task<?> task, int worker);
+
+    /**
+     * Adds all the tasks to the queue at once
+     *
+     * @param tasks  Tasks to add
+     * @param worker Index of pool thread that adds the tasks or -1 if it's not pool thread
+     */
+    void pushAll(@NotNull List<? extends Task<?>> tasks, int worker);
+
+    /**
+     * Takes next task for the thread
+     *
+     * @param worker Index of pool thread that takes the task or -1 if it's not pool thread
+     * @return Task or null if queue is empty
+     */
+    Task<?> poll(int worker);
+
+    /**
+     * Takes the task that was added last, it's used by thread that waits in join.
+     * Newest task is usually the subtask of the waiting task, so helping thread goes deep
+     * into recursion like usual call would do instead of starting the oldest tasks one inside another
+     *
+     * @param worker Index of pool thread that takes the task
+     * @return Task or null if queue is empty
+     */
+    Task<?> pollNewest(int worker);
+
+    /**
+     * Takes the task that is waiting longer than others
+     *
+     * @return Task or null if queue is empty
+     */
+    Task<?> pollOldest();
+
+    /**
+     * Removes the task if it's still in the queue
+     *
+     * @param task Task to remove
+     * @return True if task was removed
+     */
+    boolean remove(@NotNull Task<?> task);
+
+    /**
+     * Checks if there are no tasks in the queue
+     *
+     * @return True if queue is empty
+     */
+    boolean isEmpty();
+}
@@ -0,0 +1,207 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Group of tasks that are forked and joined together, no task of the scope outlives it.
+ * In fail-fast scope the first failed task cancels all the other tasks, so pool doesn't calculate
+ * tasks whose results won't be used. Join throws LightExecutionException with exceptions
+ * of all the failed tasks as suppressed. Scope should be closed, close cancels unfinished tasks:
+ * <pre>
+ * try (TaskScope&lt;Integer&gt; scope = pool.openScope()) {
+ *     scope.fork(() -&gt; 1);
+ *     scope.fork(() -&gt; 2);
+ *     List&lt;Integer&gt; results = scope.join();
+ * }
+ * </pre>
+ *
+ * @param <T> Result type of scope's tasks
+ */
+public class TaskScope<T> implements AutoCloseable {
+    private final ThreadPoolmpl<?> pool;
+    private final boolean isFailFast;
+    private final List<ScopeTask<T>> tasks = new ArrayList<>();
+    private volatile boolean isFailed = false;
+    private boolean isClosed = false;
+
+    TaskScope(@NotNull ThreadPoolmpl<?> pool, boolean isFailFast) {
+        this.pool = pool;
+        this.isFailFast = isFailFast;
+    }
+
+    /**
+     * Add Supplier to the pool as the task of this scope, see {@link ThreadPoolmpl#fork(Supplier)}.
+     * If fail-fast scope has already failed, task is cancelled right away
+     *
+     * @param task Supplier: () -> T that will be calculated in thread pool
+     * @return LightFuture of the task
+     * @throws IllegalStateException if scope is closed
+     */
+    public LightFuture<T> fork(@NotNull Supplier<? extends T> task) {
+        ScopeTask<T> newTask = new ScopeTask<>(pool, this, task);
+        synchronized (tasks) {
+            if (isClosed) {
+                throw new IllegalStateException("Scope is closed");
+            }
+            tasks.add(newTask);
+        }
+        if (isFailFast && isFailed) {
+            newTask.isCancelledByScope = true;
+            newTask.cancel(false);
+            return newTask;
+        }
+        pool.forkTask(newTask);
+        return newTask;
+    }
+
+    /**
+     * Wait for all the tasks of the scope. Pool's thread calculates other tasks while it waits,
+     * see {@link ThreadPoolmpl#join(LightFuture)}
+     *
+     * @return Results in the order tasks were forked
+     * @throws LightExecutionException If some tasks failed, their exceptions are suppressed in it.
+     *                                 Tasks that were cancelled by fail-fast aren't counted as failed
+     */
+    public List<T> join() throws LightExecutionException {
+        for (ScopeTask<T> task : snapshot()) {
+            try {
+                pool.join(task);
+            } catch (LightExecutionException ignored) {
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw interrupted();
+            }
+        }
+        return results();
+    }
+
+    /**
+     * Wait for all the tasks of the scope no longer than timeout. Pool's thread calculates other tasks
+     * while it waits, see {@link ThreadPoolmpl#join(LightFuture, long, TimeUnit)}.
+     * If some tasks aren't ready after timeout, all of them are cancelled
+     *
+     * @param timeout Max time to wait
+     * @param unit    Unit of timeout
+     * @return Results in the order tasks were forked
+     * @throws LightExecutionException The same as in {@link #join()}
+     * @throws TimeoutException        If some tasks aren't ready after timeout
+     */
+    public List<T> join(long timeout, @NotNull TimeUnit unit) throws LightExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ScopeTask<T> task : snapshot()) {
+            try {
+                pool.join(task, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (LightExecutionException ignored) {
+            } catch (TimeoutException e) {
+                cancelAll();
+                throw new TimeoutException("Tasks of scope aren't ready after " + timeout + " " + unit);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw interrupted();
+            }
+        }
+        return results();
+    }
+
+    /**
+     * Cancels all the unfinished tasks of the scope and interrupts running ones.
+     * Tasks can't be forked after this
+     */
+    @Override
+    public void close() {
+        synchronized (tasks) {
+            isClosed = true;
+        }
+        cancelAll();
+    }
+
+    /**
+     * Is called once for every task of the scope that failed by itself
+     */
+    private void taskFailed() {
+        if (!isFailFast || isFailed) {
+            return;
+        }
+        isFailed = true;
+        for (ScopeTask<T> task : snapshot()) {
+            if (!task.isReady()) {
+                task.isCancelledByScope = true;
+                task.cancel(true);
+            }
+        }
+    }
+
+    private void cancelAll() {
+        for (ScopeTask<T> task : snapshot()) {
+            task.cancel(true);
+        }
+    }
+
+    private List<ScopeTask<T>> snapshot() {
+        synchronized (tasks) {
+            return new ArrayList<>(tasks);
+        }
+    }
+
+    /**
+     * All the tasks are ready here
+     */
+    private List<T> results() throws LightExecutionException {
+        List<ScopeTask<T>> ready = snapshot();
+        LightExecutionException failure = null;
+        List<T> results = new ArrayList<>(ready.size());
+        for (ScopeTask<T> task : ready) {
+            if (task.getException == null) {
+                results.add(task.result);
+                continue;
+            }
+            if (task.isCancelled() && task.isCancelledByScope) {
+                continue;
+            }
+            if (failure == null) {
+                failure = new LightExecutionException();
+            }
+            failure.addSuppressed(task.getException);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    private static LightExecutionException interrupted() {
+        LightExecutionException e = new LightExecutionException();
+        e.addSuppressed(new InterruptedException());
+        return e;
+    }
+
+    /**
+     * Task of the scope, it tells the scope when it fails
+     */
+    private static class ScopeTask<T> extends SupplierTask<T> {
+        private final TaskScope<T> scope;
+        volatile boolean isCancelledByScope = false;
+
+        ScopeTask(@NotNull ThreadPoolmpl<?> pool, @NotNull TaskScope<T> scope, @NotNull Supplier<? extends T> func) {
+            super(pool, func);
+            this.scope = scope;
+        }
+
+        @Override
+        boolean complete(T result, Exception exception) {
+            if (!super.complete(result, exception)) {
+                return false;
+            }
+            if (exception != null) {
+                scope.taskFailed();
+            }
+            return true;
+        }
+    }
+}
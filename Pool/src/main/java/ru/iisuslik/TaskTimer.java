@@ -0,0 +1,133 @@
+package ru.iisuslik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap of scheduled tasks with one thread that adds them to the pool when their time comes.
+ * Adding and taking timer is O(log n), so the pool can have thousands of timers.
+ * Removed task stays in the heap and is dropped when its time comes, so cancel is O(1).
+ * When removed tasks take half of the heap, they are dropped all at once
+ * Thread is started with the first timer, it's daemon, so waiting timers don't stop JVM from exit
+ */
+class TaskTimer {
+    private final ThreadPoolmpl<?> pool;
+    private final PriorityQueue<ScheduledTask<?>> tasks = new PriorityQueue<>(TaskTimer::compare);
+    private long nextSequence = 0;
+    private int removedCount = 0;
+    private Thread thread = null;
+    private boolean isStopped = false;
+
+    TaskTimer(@NotNull ThreadPoolmpl<?> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Adds task to the heap, timer thread is woken up only if the task is the first one now.
+     * Ready task is ignored: it's checked under the lock, so task cancelled before it's added
+     * won't run again and task cancelled after it's added is removed
+     *
+     * @return False if timer is already stopped
+     */
+    synchronized boolean add(@NotNull ScheduledTask<?> task) {
+        if (isStopped) {
+            return false;
+        }
+        if (task.isReady()) {
+            return true;
+        }
+        task.sequence = nextSequence++;
+        task.isInTimer = true;
+        tasks.add(task);
+        if (thread == null) {
+            thread = new Thread(this::run, "Timer thread");
+            thread.setDaemon(true);
+            thread.start();
+        } else if (tasks.peek() == task) {
+            notify();
+        }
+        return true;
+    }
+
+    synchronized void remove(@NotNull ScheduledTask<?> task) {
+        if (!task.isInTimer) {
+            return;
+        }
+        task.isInTimer = false;
+        removedCount++;
+        if (removedCount > tasks.size() / 2) {
+            tasks.removeIf(waiting -> !waiting.isInTimer);
+            removedCount = 0;
+        }
+    }
+
+    synchronized int size() {
+        return tasks.size() - removedCount;
+    }
+
+    /**
+     * Stops timer thread, waiting timers are never added to the pool
+     *
+     * @return Tasks that were waiting for their time
+     */
+    synchronized List<ScheduledTask<?>> stop() {
+        isStopped = true;
+        notify();
+        List<ScheduledTask<?>> waiting = new ArrayList<>(tasks.size() - removedCount);
+        for (ScheduledTask<?> task : tasks) {
+            if (task.isInTimer) {
+                task.isInTimer = false;
+                waiting.add(task);
+            }
+        }
+        tasks.clear();
+        removedCount = 0;
+        return waiting;
+    }
+
+    private void run() {
+        while (true) {
+            ScheduledTask<?> task;
+            synchronized (this) {
+                try {
+                    while (!isStopped && !isHeadDue()) {
+                        if (tasks.isEmpty()) {
+                            wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(this, tasks.peek().timeNanos - System.nanoTime());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (isStopped) {
+                    return;
+                }
+                task = tasks.poll();
+                if (!task.isInTimer) {
+                    removedCount--;
+                    continue;
+                }
+                task.isInTimer = false;
+            }
+            if (!task.isReady()) {
+                pool.execute(task);
+            }
+        }
+    }
+
+    private boolean isHeadDue() {
+        return !tasks.isEmpty() && tasks.peek().timeNanos - System.nanoTime() <= 0;
+    }
+
+    private static int compare(ScheduledTask<?> first, ScheduledTask<?> second) {
+        if (first.timeNanos != second.timeNanos) {
+            return Long.compare(first.timeNanos - second.timeNanos, 0);
+        }
+        return Long.compare(first.sequence, second.sequence);
+    }
+}
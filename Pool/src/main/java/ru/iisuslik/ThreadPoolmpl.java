@@ -3,174 +3,1547 @@ package ru.iisuslik;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
 /**
- * Realization of standard thread pool with constant count of threads.
+ * Realization of standard thread pool. It has constant count of threads or, if core and max sizes differ,
+ * starts new threads when tasks wait in the queue and stops threads that have nothing to do for keep-alive time.
  * Threads can calculate suppliers and functions, you can get result and do some other things
  * by calling methods in LightFuture. LightFuture is special interface that returns when you add tasks.
+ * One pool can calculate tasks of any types, see {@link #submit(Supplier)}
  *
- * @param <T> Suppliers and Functions returning type:
- *            Supplier: () -> T
- *            Function: T -> T
+ * @param <T> Returning type of Suppliers added by {@link #addTask(Supplier)}
  */
 public class ThreadPoolmpl<T> {
 
-    private Thread[] threads;
+    private final AtomicReferenceArray<Worker> threads;
 
-    private ArrayList<Task> tasksQueue = new ArrayList<>();
+    private final int corePoolSize;
+
+    private final int maximumPoolSize;
+
+    private final long keepAliveNanos;
+
+    private final AtomicInteger poolSize = new AtomicInteger();
+
+    private final AtomicInteger largestPoolSize = new AtomicInteger();
+
+    private final AtomicLong startedThreads = new AtomicLong();
+
+    private final AtomicLong retiredThreads = new AtomicLong();
+
+    private final AtomicBoolean isShutDown = new AtomicBoolean(false);
+
+    private volatile boolean isStopped = false;
+
+    private volatile boolean isTerminated = false;
+
+    private final Object terminationLock = new Object();
+
+    private final TaskQueue queue;
+
+    private final int capacity;
+
+    private final OverflowPolicy policy;
+
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+
+    private final AtomicInteger largestQueueSize = new AtomicInteger();
+
+    private final AtomicInteger idleThreads = new AtomicInteger();
+
+    private final Object idleLock = new Object();
+
+    private final AtomicInteger blockedSubmitters = new AtomicInteger();
+
+    private final Object spaceLock = new Object();
+
+    private final Semaphore taskThreadPermits;
+
+    private final Set<Thread> taskThreads = ConcurrentHashMap.newKeySet();
+
+    private final PoolMetrics metrics;
+
+    private final TaskTimer timer = new TaskTimer(this);
+
+    private volatile PoolListener[] listeners;
+
+    private static final int DEFAULT_GROUP_SIZE = 4;
+
+    private static final long JOIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ThreadLocal<RecycledTaskCache> recycledTasks = ThreadLocal.withInitial(RecycledTaskCache::new);
+
+    /**
+     * Construct new ThreadPool an start constant count of threads that take tasks from one shared queue
+     *
+     * @param threadCount Count of threads that will be running
+     */
+    public ThreadPoolmpl(int threadCount) {
+        this(threadCount, SchedulingMode.SHARED_QUEUE);
+    }
+
+    /**
+     * Construct new ThreadPool with unbounded task queue an start constant count of threads
+     *
+     * @param threadCount Count of threads that will be running
+     * @param mode        The way threads will get tasks, see {@link SchedulingMode}
+     */
+    public ThreadPoolmpl(int threadCount, @NotNull SchedulingMode mode) {
+        this(threadCount, mode, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Construct new ThreadPool with unbounded task queue an start constant count of threads
+     * that are split into groups, see {@link SchedulingMode#AFFINITY_GROUPS}.
+     * For the best locality there should be one group for every socket or for every core complex
+     * that shares cache, there is no way to pin threads to cores in Java, OS usually keeps them in place
+     *
+     * @param threadCount Count of threads that will be running
+     * @param groupCount  Count of groups, thread i belongs to group i % groupCount
+     */
+    public ThreadPoolmpl(int threadCount, int groupCount) {
+        this(threadCount, threadCount, Long.MAX_VALUE, TimeUnit.NANOSECONDS,
+                SchedulingMode.AFFINITY_GROUPS, groupCount, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Construct new ThreadPool with bounded task queue an start constant count of threads.
+     * Capacity limits tasks added by addTask, submit and addAll. Continuations of accepted tasks
+     * always get to the queue when their tasks are ready, otherwise pool's threads could wait for each other
+     *
+     * @param threadCount Count of threads that will be running, in {@link SchedulingMode#VIRTUAL_THREADS} mode
+     *                    max count of tasks that are calculated at the same time
+     * @param mode        The way threads will get tasks, see {@link SchedulingMode}
+     * @param capacity    Max count of tasks waiting in the queue
+     * @param policy      What to do with new task when the queue is full
+     */
+    public ThreadPoolmpl(int threadCount, @NotNull SchedulingMode mode, int capacity, @NotNull OverflowPolicy policy) {
+        this(threadCount, threadCount, Long.MAX_VALUE, TimeUnit.NANOSECONDS, mode, capacity, policy);
+    }
+
+    /**
+     * Construct new elastic ThreadPool with unbounded task queue and start core count of threads
+     *
+     * @param corePoolSize    Count of threads that are always running
+     * @param maximumPoolSize Max count of threads
+     * @param keepAliveTime   How long threads over core count wait for tasks before they stop
+     * @param unit            Keep-alive time unit
+     */
+    public ThreadPoolmpl(int corePoolSize, int maximumPoolSize, long keepAliveTime, @NotNull TimeUnit unit) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit,
+                SchedulingMode.SHARED_QUEUE, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Construct new ThreadPool and start core count of threads.
+     * When a task waits in the queue and all the threads are busy, new thread is started if there are less than
+     * max threads. Threads over core count stop when they have nothing to do for keep-alive time.
+     * Capacity limits tasks added by addTask, submit and addAll. Continuations of accepted tasks
+     * always get to the queue when their tasks are ready, otherwise pool's threads could wait for each other
+     *
+     * @param corePoolSize    Count of threads that are always running, it's ignored in
+     *                        {@link SchedulingMode#VIRTUAL_THREADS} mode
+     * @param maximumPoolSize Max count of threads, in {@link SchedulingMode#VIRTUAL_THREADS} mode
+     *                        max count of tasks that are calculated at the same time
+     * @param keepAliveTime   How long threads over core count wait for tasks before they stop
+     * @param unit            Keep-alive time unit
+     * @param mode            The way threads will get tasks, see {@link SchedulingMode}
+     * @param capacity        Max count of tasks waiting in the queue
+     * @param policy          What to do with new task when the queue is full
+     */
+    public ThreadPoolmpl(int corePoolSize, int maximumPoolSize, long keepAliveTime, @NotNull TimeUnit unit,
+                         @NotNull SchedulingMode mode, int capacity, @NotNull OverflowPolicy policy) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, mode,
+                (maximumPoolSize + DEFAULT_GROUP_SIZE - 1) / DEFAULT_GROUP_SIZE, capacity, policy);
+    }
+
+    /**
+     * Full constructor, group count is used only in {@link SchedulingMode#AFFINITY_GROUPS} mode
+     */
+    private ThreadPoolmpl(int corePoolSize, int maximumPoolSize, long keepAliveTime, @NotNull TimeUnit unit,
+                          @NotNull SchedulingMode mode, int groupCount, int capacity, @NotNull OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity should be positive");
+        }
+        if (corePoolSize < 0 || maximumPoolSize <= 0 || maximumPoolSize < corePoolSize || keepAliveTime < 0) {
+            throw new IllegalArgumentException("Wrong pool sizes or keep-alive time");
+        }
+        if (mode == SchedulingMode.AFFINITY_GROUPS && (groupCount <= 0 || groupCount > maximumPoolSize)) {
+            throw new IllegalArgumentException("Group count should be positive and not bigger than thread count");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.corePoolSize = corePoolSize;
+        this.maximumPoolSize = maximumPoolSize;
+        keepAliveNanos = unit.toNanos(keepAliveTime);
+        threads = new AtomicReferenceArray<>(maximumPoolSize);
+        metrics = new PoolMetrics(this, maximumPoolSize);
+        listeners = new PoolListener[]{metrics};
+        if (mode == SchedulingMode.WORK_STEALING) {
+            queue = new StealingTaskQueue(maximumPoolSize);
+        } else if (mode == SchedulingMode.PRIORITY) {
+            queue = new PriorityTaskQueue();
+        } else if (mode == SchedulingMode.AFFINITY_GROUPS) {
+            queue = new AffinityTaskQueue(groupCount);
+        } else {
+            queue = new SharedTaskQueue();
+        }
+        if (mode == SchedulingMode.VIRTUAL_THREADS) {
+            taskThreadPermits = new Semaphore(maximumPoolSize);
+            return;
+        }
+        taskThreadPermits = null;
+        for (int i = 0; i < corePoolSize; i++) {
+            addWorker();
+        }
+    }
+
+    /**
+     * Add Supplier to the task queue, it will be calculated as soon as some threads will be free.
+     * If the queue is full, pool's {@link OverflowPolicy} is applied
+     *
+     * @param task Supplier: () -> T that will be calculated in thread pool
+     * @return Special class that implements LightFuture, from it you can check that task is finished
+     * or get task's result
+     */
+    public LightFuture<T> addTask(@NotNull Supplier<T> task) {
+        return submit(task);
+    }
+
+    /**
+     * Add Supplier of any type to the task queue, it will be calculated as soon as some threads will be free
+     *
+     * @param task Supplier: () -> U that will be calculated in thread pool
+     * @param <U>  Supplier's returning type
+     * @return Special class that implements LightFuture, from it you can check that task is finished
+     * or get task's result
+     * @throws RejectedExecutionException if the queue is full and policy is {@link OverflowPolicy#REJECT}
+     */
+    public <U> LightFuture<U> submit(@NotNull Supplier<U> task) {
+        SupplierTask<U> newTask = new SupplierTask<>(this, task);
+        executeNew(newTask);
+        return newTask;
+    }
+
+    /**
+     * Add Supplier with priority to the task queue, see {@link SchedulingMode#PRIORITY}
+     *
+     * @param task     Supplier: () -> T that will be calculated in thread pool
+     * @param priority Task's priority, bigger is more urgent, default priority is 0
+     * @return Special class that implements LightFuture
+     */
+    public LightFuture<T> addTask(@NotNull Supplier<T> task, int priority) {
+        return submit(task, priority);
+    }
+
+    /**
+     * Add Supplier with priority and deadline to the task queue, see {@link SchedulingMode#PRIORITY}
+     *
+     * @param task     Supplier: () -> T that will be calculated in thread pool
+     * @param priority Task's priority, bigger is more urgent, default priority is 0
+     * @param timeout  Time from now to the deadline
+     * @param unit     Unit of timeout
+     * @return Special class that implements LightFuture
+     */
+    public LightFuture<T> addTask(@NotNull Supplier<T> task, int priority, long timeout, @NotNull TimeUnit unit) {
+        return submit(task, priority, timeout, unit);
+    }
+
+    /**
+     * Add Supplier of any type with priority to the task queue.
+     * Priority works only in {@link SchedulingMode#PRIORITY}, in other modes tasks go in FIFO order
+     *
+     * @param task     Supplier: () -> U that will be calculated in thread pool
+     * @param priority Task's priority, bigger is more urgent, default priority is 0.
+     *                 Tasks created by thenApply, thenCompose and thenCombine get priority of their parents
+     * @param <U>      Supplier's returning type
+     * @return Special class that implements LightFuture
+     */
+    public <U> LightFuture<U> submit(@NotNull Supplier<U> task, int priority) {
+        SupplierTask<U> newTask = new SupplierTask<>(this, task);
+        newTask.priority = priority;
+        executeNew(newTask);
+        return newTask;
+    }
+
+    /**
+     * Add Supplier of any type with priority and deadline to the task queue.
+     * Among tasks with the same priority the one with earlier deadline goes first.
+     * If task isn't started before the deadline, it's skipped and its LightFuture becomes expired,
+     * see {@link LightFuture#isExpired()}. Task that is already running isn't stopped by the deadline
+     *
+     * @param task     Supplier: () -> U that will be calculated in thread pool
+     * @param priority Task's priority, bigger is more urgent, default priority is 0
+     * @param timeout  Time from now to the deadline
+     * @param unit     Unit of timeout
+     * @param <U>      Supplier's returning type
+     * @return Special class that implements LightFuture
+     */
+    public <U> LightFuture<U> submit(@NotNull Supplier<U> task, int priority, long timeout, @NotNull TimeUnit unit) {
+        SupplierTask<U> newTask = new SupplierTask<>(this, task);
+        newTask.priority = priority;
+        newTask.setDeadline(unit.toNanos(timeout));
+        executeNew(newTask);
+        return newTask;
+    }
+
+    /**
+     * Add Supplier with affinity key to the task queue, see {@link #submitWithAffinity(Object, Supplier)}
+     *
+     * @param key  Affinity key, tasks with equal keys are calculated by the same group of threads
+     * @param task Supplier: () -> T that will be calculated in thread pool
+     * @return Special class that implements LightFuture
+     */
+    public LightFuture<T> addTaskWithAffinity(@NotNull Object key, @NotNull Supplier<T> task) {
+        return submitWithAffinity(key, task);
+    }
+
+    /**
+     * Add Supplier of any type with affinity key to the task queue. In {@link SchedulingMode#AFFINITY_GROUPS}
+     * tasks with equal keys go to the queue of the same group of threads, so tasks that work with
+     * the same data should have the same key. Tasks created by thenApply, thenCompose and thenCombine
+     * get key of their parents. In other modes key is ignored
+     *
+     * @param key  Affinity key, it's compared by hashCode
+     * @param task Supplier: () -> U that will be calculated in thread pool
+     * @param <U>  Supplier's returning type
+     * @return Special class that implements LightFuture
+     */
+    public <U> LightFuture<U> submitWithAffinity(@NotNull Object key, @NotNull Supplier<U> task) {
+        SupplierTask<U> newTask = new SupplierTask<>(this, task);
+        newTask.affinity = key.hashCode() & Integer.MAX_VALUE;
+        executeNew(newTask);
+        return newTask;
+    }
+
+    /**
+     * Add Supplier of any type to the task queue in low-allocation mode. Task object and its LightFuture are taken
+     * from the cache of the current thread and go back there after the result is got by any thread.
+     * Result can be got only once, after that LightFuture throws IllegalStateException until it's returned
+     * by the next call, so it must not be used after get. Such task can't be used in thenApply, thenCompose,
+     * thenCombine, allOf and anyOf.
+     * If task fails, LightExecutionException has no stack trace
+     *
+     * @param task Supplier: () -> U that will be calculated in thread pool
+     * @param <U>  Supplier's returning type
+     * @return LightFuture that can give result only once
+     */
+    public <U> LightFuture<U> submitRecycled(@NotNull Supplier<U> task) {
+        RecycledTaskCache cache = recycledTasks.get();
+        // Cache keeps free tasks of any result type, reuse sets supplier of type U before task is used
+        @SuppressWarnings("unchecked")
+        RecycledTask<U> newTask = (RecycledTask<U>) cache.poll();
+        if (newTask == null) {
+            newTask = new RecycledTask<>(this, cache);
+        }
+        newTask.reuse(task);
+        executeNew(newTask);
+        return newTask.future;
+    }
+
+    /**
+     * Add Supplier of any type that will be added to the task queue after delay.
+     * Timer doesn't take any pool's thread while it waits
+     *
+     * @param task  Supplier: () -> U that will be calculated in thread pool
+     * @param delay Time from now to the start of the task
+     * @param unit  Unit of delay
+     * @param <U>   Supplier's returning type
+     * @return Special class that implements LightFuture, cancel removes the timer
+     * @throws RejectedExecutionException if pool is shut down
+     */
+    public <U> LightFuture<U> schedule(@NotNull Supplier<U> task, long delay, @NotNull TimeUnit unit) {
+        ScheduledTask<U> newTask = new ScheduledTask<>(this, task, unit.toNanos(delay), 0);
+        if (!timer.add(newTask)) {
+            throw new RejectedExecutionException("Pool is shut down");
+        }
+        return newTask;
+    }
+
+    /**
+     * Run Runnable periodically, the first time after initial delay and then every period. Period is counted
+     * from the start of the previous run, but runs never overlap: if run takes longer than period, the next one
+     * starts right after it
+     *
+     * @param task         Runnable that will be run in thread pool
+     * @param initialDelay Time from now to the first run
+     * @param period       Time between starts of runs
+     * @param unit         Unit of times
+     * @return LightFuture that is never ready by itself, it fails if Runnable throws an exception
+     * and cancel stops the runs
+     * @throws IllegalArgumentException   if period isn't positive
+     * @throws RejectedExecutionException if pool is shut down
+     */
+    public LightFuture<Void> scheduleAtFixedRate(@NotNull Runnable task, long initialDelay, long period,
+                                                 @NotNull TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period has to be positive");
+        }
+        ScheduledTask<Void> newTask = new ScheduledTask<>(this, () -> {
+            task.run();
+            return null;
+        }, unit.toNanos(initialDelay), unit.toNanos(period));
+        if (!timer.add(newTask)) {
+            throw new RejectedExecutionException("Pool is shut down");
+        }
+        return newTask;
+    }
+
+    /**
+     * Get count of scheduled tasks that wait for their time
+     *
+     * @return Count of timers
+     */
+    public int getScheduledTaskCount() {
+        return timer.size();
+    }
+
+    /**
+     * Add subtask from the task that is calculated by this pool. Forked subtask goes to the deque
+     * of current thread in {@link SchedulingMode#WORK_STEALING} and it isn't limited by queue capacity,
+     * so fork never blocks or rejects. From other threads it's the same as {@link #submit(Supplier)}
+     *
+     * @param task Supplier: () -> U that will be calculated in thread pool
+     * @param <U>  Supplier's returning type
+     * @return LightFuture that should be waited with {@link #join(LightFuture)}
+     */
+    public <U> LightFuture<U> fork(@NotNull Supplier<U> task) {
+        SupplierTask<U> newTask = new SupplierTask<>(this, task);
+        forkTask(newTask);
+        return newTask;
+    }
+
+    /**
+     * Opens scope with fail-fast policy, see {@link TaskScope}
+     *
+     * @param <U> Result type of scope's tasks
+     * @return New scope, it should be closed
+     */
+    public <U> TaskScope<U> openScope() {
+        return openScope(true);
+    }
+
+    /**
+     * Opens scope for the group of tasks that are joined together, see {@link TaskScope}
+     *
+     * @param isFailFast If it's true, first failed task cancels all the other tasks of the scope
+     * @param <U>        Result type of scope's tasks
+     * @return New scope, it should be closed
+     */
+    public <U> TaskScope<U> openScope(boolean isFailFast) {
+        return new TaskScope<>(this, isFailFast);
+    }
+
+    /**
+     * Wait for the task and get its result. Pool's thread doesn't just wait: it calculates other tasks
+     * from the queue, first of all its own forked subtasks, so recursive tasks can't take all the threads
+     * and deadlock the pool. Task thread of {@link SchedulingMode#VIRTUAL_THREADS} mode can't help,
+     * so it gives its place to other tasks while it waits and takes a place again after.
+     * From other threads it's the same as {@link LightFuture#get()}.
+     * Interrupt of joining thread stops helping and isn't lost, only interrupt sent by cancel
+     * of the calculated task is cleared
+     *
+     * @param future LightFuture created by this pool
+     * @param <U>    Result type
+     * @return Result of the task
+     * @throws LightExecutionException The same as in {@link LightFuture#get()}
+     */
+    public <U> U join(@NotNull LightFuture<U> future) throws LightExecutionException {
+        try {
+            return join(future, false, 0);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Join without timeout can't time out", e);
+        }
+    }
+
+    /**
+     * Wait for the task no longer than timeout, pool's thread calculates other tasks while it waits
+     * the same way as in {@link #join(LightFuture)}, so timed join can't starve its own subtasks either.
+     * From other threads it's the same as {@link LightFuture#get(long, TimeUnit)}
+     *
+     * @param future  LightFuture created by this pool
+     * @param timeout Max time to wait
+     * @param unit    Unit of timeout
+     * @param <U>     Result type
+     * @return Result of the task
+     * @throws LightExecutionException The same as in {@link LightFuture#get()}
+     * @throws TimeoutException        If task isn't ready after timeout
+     */
+    public <U> U join(@NotNull LightFuture<U> future, long timeout, @NotNull TimeUnit unit)
+            throws LightExecutionException, TimeoutException {
+        try {
+            return join(future, true, System.nanoTime() + unit.toNanos(timeout));
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Task isn't ready after " + timeout + " " + unit);
+        }
+    }
+
+    private <U> U join(@NotNull LightFuture<U> future, boolean isTimed, long deadline)
+            throws LightExecutionException, TimeoutException {
+        int worker = currentWorkerIndex();
+        if (worker < 0 || !(future instanceof Task)) {
+            if (future instanceof Task && taskThreads.contains(Thread.currentThread())) {
+                return joinReleasingPermit(future, isTimed, deadline);
+            }
+            return get(future, isTimed, deadline);
+        }
+        boolean isInterrupted = Thread.interrupted();
+        while (!isStopped && !isInterrupted) {
+            while (!future.isReady() && !(isTimed && deadline - System.nanoTime() <= 0)) {
+                Task<?> task = takeTask(worker, true);
+                if (task == null) {
+                    break;
+                }
+                runTask(task, worker);
+                if (Thread.interrupted()) {
+                    isInterrupted = true;
+                    break;
+                }
+            }
+            if (isInterrupted) {
+                break;
+            }
+            long wait = isTimed ? Math.min(JOIN_WAIT_NANOS, deadline - System.nanoTime()) : JOIN_WAIT_NANOS;
+            try {
+                return future.get(wait, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (isTimed && deadline - System.nanoTime() <= 0) {
+                    throw e;
+                }
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return get(future, isTimed, deadline);
+    }
+
+    /**
+     * Waits for the task without holding the permit, otherwise tasks that join their subtasks
+     * could take all the permits and subtasks would never start
+     */
+    private <U> U joinReleasingPermit(@NotNull LightFuture<U> future, boolean isTimed, long deadline)
+            throws LightExecutionException, TimeoutException {
+        if (future.isReady()) {
+            return future.get();
+        }
+        taskThreadPermits.release();
+        startTaskThreads();
+        try {
+            return get(future, isTimed, deadline);
+        } finally {
+            taskThreadPermits.acquireUninterruptibly();
+        }
+    }
+
+    private static <U> U get(@NotNull LightFuture<U> future, boolean isTimed, long deadline)
+            throws LightExecutionException, TimeoutException {
+        return isTimed ? future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) : future.get();
+    }
+
+    /**
+     * Add all the Suppliers to the task queue at once. Threads are woken up once for the whole batch,
+     * so it's much cheaper than adding Suppliers one by one
+     *
+     * @param tasks Suppliers: () -> T that will be calculated in thread pool
+     * @return LightBatch from which you can get results of all the tasks or LightFutures of separate tasks
+     */
+    public LightBatch<T> addAll(@NotNull Collection<? extends Supplier<T>> tasks) {
+        return submitAll(tasks);
+    }
+
+    /**
+     * Add all the Suppliers of any type to the task queue at once. Threads are woken up once for the whole batch,
+     * so it's much cheaper than adding Suppliers one by one.
+     * If there is no space for the whole batch, pool's {@link OverflowPolicy} is applied to every task separately,
+     * except {@link OverflowPolicy#REJECT} that rejects the whole batch
+     *
+     * @param tasks Suppliers: () -> U that will be calculated in thread pool
+     * @param <U>   Suppliers' returning type
+     * @return LightBatch from which you can get results of all the tasks or LightFutures of separate tasks
+     * @throws RejectedExecutionException if there is no space for the batch and policy is {@link OverflowPolicy#REJECT}
+     */
+    public <U> LightBatch<U> submitAll(@NotNull Collection<? extends Supplier<? extends U>> tasks) {
+        List<SupplierTask<U>> newTasks = new ArrayList<>(tasks.size());
+        for (Supplier<? extends U> task : tasks) {
+            newTasks.add(new SupplierTask<>(this, task));
+        }
+        BatchTask<U> batch = new BatchTask<>(this, newTasks);
+        executeAllNew(newTasks);
+        return batch;
+    }
+
+    /**
+     * Add all the Suppliers to the task queue at once and wait for all of them
+     *
+     * @param tasks Suppliers: () -> U that will be calculated in thread pool
+     * @param <U>   Suppliers' returning type
+     * @return Results of Suppliers in the same order
+     * @throws LightExecutionException It'll be thrown if some Supplier throws an Exception
+     */
+    public <U> List<U> invokeAll(@NotNull Collection<? extends Supplier<? extends U>> tasks)
+            throws LightExecutionException {
+        return this.<U>submitAll(tasks).get();
+    }
+
+    /**
+     * Apply Function to every element of the list in parallel. List is split into chunks, one task is created
+     * for a chunk, see {@link RangeSplitter}. It can be called from pool's tasks too
+     *
+     * @param list Elements
+     * @param func Function that will be applied to every element
+     * @param <E>  Elements' type
+     * @param <R>  Function's returning type
+     * @return Results in the same order as elements
+     * @throws LightExecutionException It'll be thrown if Function throws an Exception
+     */
+    public <E, R> List<R> parallelMap(@NotNull List<? extends E> list, @NotNull Function<? super E, ? extends R> func)
+            throws LightExecutionException {
+        List<? extends E> elements = randomAccess(list);
+        return parallelMap(0, elements.size(), i -> func.apply(elements.get(i)));
+    }
+
+    /**
+     * Apply Function to every element of the array in parallel, see {@link #parallelMap(List, Function)}
+     *
+     * @param array Elements
+     * @param func  Function that will be applied to every element
+     * @param <E>   Elements' type
+     * @param <R>   Function's returning type
+     * @return Results in the same order as elements
+     * @throws LightExecutionException It'll be thrown if Function throws an Exception
+     */
+    public <E, R> List<R> parallelMap(@NotNull E[] array, @NotNull Function<? super E, ? extends R> func)
+            throws LightExecutionException {
+        return parallelMap(0, array.length, i -> func.apply(array[i]));
+    }
+
+    /**
+     * Apply Function to every number of the range in parallel, see {@link #parallelMap(List, Function)}
+     *
+     * @param from First number of the range
+     * @param to   Number after the last one
+     * @param func Function that will be applied to every number
+     * @param <R>  Function's returning type
+     * @return Results in the order of the range
+     * @throws LightExecutionException It'll be thrown if Function throws an Exception
+     * @throws IllegalArgumentException If range has more numbers than list can keep
+     */
+    public <R> List<R> parallelMap(int from, int to, @NotNull IntFunction<? extends R> func)
+            throws LightExecutionException {
+        if (from >= to) {
+            return new ArrayList<>();
+        }
+        long size = (long) to - from;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Range of " + size + " numbers doesn't fit in a list");
+        }
+        List<R> results = new ArrayList<>(Collections.nCopies((int) size, null));
+        new RangeSplitter<Void>(this, (chunkFrom, chunkTo) -> {
+            for (int i = chunkFrom; i < chunkTo; i++) {
+                results.set(i - from, func.apply(i));
+            }
+            return null;
+        }, (first, second) -> null).invoke(from, to);
+        return results;
+    }
+
+    /**
+     * Reduce elements of the list in parallel. Every chunk is reduced starting with identity,
+     * then results of chunks are reduced in the order of the list, so operator has to be associative
+     *
+     * @param list     Elements
+     * @param identity Identity of the operator
+     * @param operator Associative operator
+     * @param <E>      Elements' type
+     * @return Result of reduce, identity if list is empty
+     * @throws LightExecutionException It'll be thrown if operator throws an Exception
+     */
+    public <E> E parallelReduce(@NotNull List<? extends E> list, E identity, @NotNull BinaryOperator<E> operator)
+            throws LightExecutionException {
+        List<? extends E> elements = randomAccess(list);
+        return parallelReduce(0, elements.size(), identity, elements::get, operator);
+    }
+
+    /**
+     * Reduce elements of the array in parallel, see {@link #parallelReduce(List, Object, BinaryOperator)}
+     *
+     * @param array    Elements
+     * @param identity Identity of the operator
+     * @param operator Associative operator
+     * @param <E>      Elements' type
+     * @return Result of reduce, identity if array is empty
+     * @throws LightExecutionException It'll be thrown if operator throws an Exception
+     */
+    public <E> E parallelReduce(@NotNull E[] array, E identity, @NotNull BinaryOperator<E> operator)
+            throws LightExecutionException {
+        return parallelReduce(0, array.length, identity, i -> array[i], operator);
+    }
+
+    /**
+     * Map every number of the range and reduce the results in parallel,
+     * see {@link #parallelReduce(List, Object, BinaryOperator)}
+     *
+     * @param from     First number of the range
+     * @param to       Number after the last one
+     * @param identity Identity of the operator
+     * @param mapper   Function that will be applied to every number
+     * @param operator Associative operator
+     * @param <R>      Result type
+     * @return Result of reduce, identity if range is empty
+     * @throws LightExecutionException It'll be thrown if mapper or operator throws an Exception
+     */
+    public <R> R parallelReduce(int from, int to, R identity, @NotNull IntFunction<? extends R> mapper,
+                                @NotNull BinaryOperator<R> operator) throws LightExecutionException {
+        if (from >= to) {
+            return identity;
+        }
+        return new RangeSplitter<R>(this, (chunkFrom, chunkTo) -> {
+            R result = identity;
+            for (int i = chunkFrom; i < chunkTo; i++) {
+                result = operator.apply(result, mapper.apply(i));
+            }
+            return result;
+        }, operator).invoke(from, to);
+    }
+
+    /**
+     * Call Consumer for every element of the list in parallel, see {@link #parallelMap(List, Function)}
+     *
+     * @param list     Elements
+     * @param consumer Consumer that will be called for every element
+     * @param <E>      Elements' type
+     * @throws LightExecutionException It'll be thrown if Consumer throws an Exception
+     */
+    public <E> void parallelForEach(@NotNull List<? extends E> list, @NotNull Consumer<? super E> consumer)
+            throws LightExecutionException {
+        List<? extends E> elements = randomAccess(list);
+        parallelForEach(0, elements.size(), i -> consumer.accept(elements.get(i)));
+    }
+
+    /**
+     * Call Consumer for every element of the array in parallel, see {@link #parallelMap(List, Function)}
+     *
+     * @param array    Elements
+     * @param consumer Consumer that will be called for every element
+     * @param <E>      Elements' type
+     * @throws LightExecutionException It'll be thrown if Consumer throws an Exception
+     */
+    public <E> void parallelForEach(@NotNull E[] array, @NotNull Consumer<? super E> consumer)
+            throws LightExecutionException {
+        parallelForEach(0, array.length, i -> consumer.accept(array[i]));
+    }
+
+    /**
+     * Call Consumer for every number of the range in parallel, see {@link #parallelMap(List, Function)}
+     *
+     * @param from     First number of the range
+     * @param to       Number after the last one
+     * @param consumer Consumer that will be called for every number
+     * @throws LightExecutionException It'll be thrown if Consumer throws an Exception
+     */
+    public void parallelForEach(int from, int to, @NotNull IntConsumer consumer) throws LightExecutionException {
+        if (from >= to) {
+            return;
+        }
+        new RangeSplitter<Void>(this, (chunkFrom, chunkTo) -> {
+            for (int i = chunkFrom; i < chunkTo; i++) {
+                consumer.accept(i);
+            }
+            return null;
+        }, (first, second) -> null).invoke(from, to);
+    }
+
+    /**
+     * Creates LightFuture that will be ready when all the given LightFutures will be ready.
+     * It fails as soon as one of them fails
+     *
+     * @param futures LightFutures created by ThreadPoolmpl
+     * @param <U>     Common type of LightFutures' results
+     * @return LightFuture with the list of results in the same order
+     * @throws IllegalArgumentException if some LightFuture wasn't created by ThreadPoolmpl
+     */
+    @SafeVarargs
+    public final <U> LightFuture<List<U>> allOf(@NotNull LightFuture<? extends U>... futures) {
+        List<Task<? extends U>> tasks = new ArrayList<>(futures.length);
+        for (LightFuture<? extends U> future : futures) {
+            tasks.add(Task.asTask(future));
+        }
+        return new AllOfTask<>(this, tasks);
+    }
+
+    /**
+     * Creates LightFuture that will be ready when all the given LightFutures will be ready.
+     * It fails as soon as one of them fails
+     *
+     * @param futures LightFutures created by ThreadPoolmpl
+     * @param <U>     Common type of LightFutures' results
+     * @return LightFuture with the list of results in the same order
+     * @throws IllegalArgumentException if some LightFuture wasn't created by ThreadPoolmpl
+     */
+    public <U> LightFuture<List<U>> allOf(@NotNull Collection<? extends LightFuture<? extends U>> futures) {
+        return new AllOfTask<>(this, asTasks(futures));
+    }
+
+    /**
+     * Creates LightFuture that will be ready when the first of given LightFutures will be ready,
+     * it will have the same result or exception
+     *
+     * @param futures LightFutures created by ThreadPoolmpl
+     * @param <U>     Common type of LightFutures' results
+     * @return LightFuture with the result of first ready LightFuture
+     * @throws IllegalArgumentException if there are no LightFutures or some of them weren't created by ThreadPoolmpl
+     */
+    @SafeVarargs
+    public final <U> LightFuture<U> anyOf(@NotNull LightFuture<? extends U>... futures) {
+        if (futures.length == 0) {
+            throw new IllegalArgumentException("anyOf needs at least one LightFuture");
+        }
+        List<Task<? extends U>> tasks = new ArrayList<>(futures.length);
+        for (LightFuture<? extends U> future : futures) {
+            tasks.add(Task.asTask(future));
+        }
+        return new AnyOfTask<>(this, tasks);
+    }
+
+    /**
+     * Get count of tasks that are waiting in the queue now
+     *
+     * @return Queue size
+     */
+    public int getQueueSize() {
+        return queuedTasks.get();
+    }
 
     /**
-     * Construct new ThreadPool an start constant count of threads
+     * Get the largest count of tasks that were waiting in the queue at the same time
      *
-     * @param threadCount Count of threads that will be running
+     * @return Largest queue size
      */
-    public ThreadPoolmpl(int threadCount) {
-        threads = new Thread[threadCount];
-        for (int i = 0; i < threadCount; i++) {
-            threads[i] = new Thread(new RunnableForThreads(), "Thread " + i);
-            threads[i].start();
+    public int getLargestQueueSize() {
+        return largestQueueSize.get();
+    }
+
+    /**
+     * Get max count of tasks that can wait in the queue
+     *
+     * @return Queue capacity, Integer.MAX_VALUE if queue is unbounded
+     */
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get count of tasks that can be added to the queue now without overflow
+     *
+     * @return Remaining queue capacity
+     */
+    public int getRemainingQueueCapacity() {
+        return Math.max(0, capacity - queuedTasks.get());
+    }
+
+    /**
+     * Get count of pool's threads that are running now
+     *
+     * @return Pool size
+     */
+    public int getPoolSize() {
+        return poolSize.get();
+    }
+
+    /**
+     * Get the largest count of threads that were running at the same time
+     *
+     * @return Largest pool size
+     */
+    public int getLargestPoolSize() {
+        return largestPoolSize.get();
+    }
+
+    /**
+     * Get count of threads that are always running
+     *
+     * @return Core pool size
+     */
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    /**
+     * Get max count of threads
+     *
+     * @return Maximum pool size
+     */
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    /**
+     * Get count of threads that were started since the pool was created, including core threads
+     *
+     * @return Count of started threads
+     */
+    public long getStartedThreadCount() {
+        return startedThreads.get();
+    }
+
+    /**
+     * Get count of threads that were stopped because they had nothing to do for keep-alive time
+     *
+     * @return Count of stopped idle threads
+     */
+    public long getRetiredThreadCount() {
+        return retiredThreads.get();
+    }
+
+    /**
+     * Get pool's metrics, they are collected all the time
+     *
+     * @return Metrics of this pool
+     */
+    @NotNull
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Add listener that will be notified about pool's events
+     *
+     * @param listener Listener, it has to be fast and must not throw
+     */
+    public synchronized void addListener(@NotNull PoolListener listener) {
+        PoolListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * Remove listener added by {@link #addListener(PoolListener)}
+     *
+     * @param listener Listener to remove
+     * @return False if there was no such listener
+     */
+    public synchronized boolean removeListener(@NotNull PoolListener listener) {
+        for (int i = 1; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                PoolListener[] newListeners = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                listeners = newListeners;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop taking new tasks, tasks that are already in the queue and tasks that depend on them
+     * will be calculated, then threads stop. New tasks are rejected with RejectedExecutionException,
+     * scheduled tasks that wait for their time fail with it
+     */
+    public void shutdown() {
+        if (!isShutDown.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.unregisterMBean();
+        rejectAll(timer.stop(), "Pool was shut down before scheduled task was started");
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+        synchronized (spaceLock) {
+            spaceLock.notifyAll();
         }
+        tryTerminate();
     }
 
     /**
-     * Add Supplier to the task queue, it will be calculated as soon as some threads will be free
+     * Stop taking new tasks and stop all the threads. Tasks that weren't started are taken from the queue,
+     * they fail with RejectedExecutionException, running tasks are interrupted
      *
-     * @param task Supplier: () -> T that will be calculated in thread pool
-     * @return Special class that implements LightFuture, from it you can check that task is finished
-     * or get task's result
+     * @return LightFutures of tasks that weren't started
      */
-    public synchronized LightFuture<T> addTask(@NotNull Supplier<T> task) {
-        SupplierTask newTask = new SupplierTask(task);
-        addTask(newTask);
-        return newTask;
+    public List<LightFuture<?>> shutdownNow() {
+        isStopped = true;
+        shutdown();
+        List<Task<?>> unstarted = new ArrayList<>();
+        Task<?> task;
+        while ((task = queue.poll(-1)) != null) {
+            taskTaken();
+            task.isQueued = false;
+            unstarted.add(task);
+        }
+        for (int i = 0; i < threads.length(); i++) {
+            Thread t = threads.get(i);
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+        for (Thread t : taskThreads) {
+            t.interrupt();
+        }
+        rejectAll(unstarted, "Pool was shut down before task was started");
+        tryTerminate();
+        return new ArrayList<>(unstarted);
     }
 
     /**
-     * Interrupt all the threads in pool, this will stop them
+     * Interrupt all the threads in pool, this will stop them. It's the same as {@link #shutdownNow()}
      */
     public void shutDown() {
-        for (Thread t : threads) {
-            t.interrupt();
+        shutdownNow();
+    }
+
+    /**
+     * Wait until all the threads stop after shutdown
+     *
+     * @param timeout Max time to wait
+     * @param unit    Unit of timeout
+     * @return True if pool is terminated, false if timeout passed
+     * @throws InterruptedException if waiting thread is interrupted
+     */
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (terminationLock) {
+            while (!isTerminated) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(terminationLock, left);
+            }
         }
+        return true;
     }
 
-    private synchronized void addTask(Task task) {
-        tasksQueue.add(task);
-        this.notify();
+    /**
+     * Check if pool doesn't take new tasks
+     *
+     * @return True if shutdown or shutdownNow was called
+     */
+    public boolean isShutdown() {
+        return isShutDown.get();
     }
 
-    private class RunnableForThreads implements Runnable {
-        @Override
-        public void run() {
-            try {
-                while (true) {
-                    synchronized (ThreadPoolmpl.this) {
-                        while (tasksQueue.isEmpty()) {
-                            ThreadPoolmpl.this.wait();
-                        }
-                        Task task = tasksQueue.get(0);
-                        tasksQueue.remove(0);
-                        task.runTask();
-                    }
+    /**
+     * Check if all the threads stopped after shutdown
+     *
+     * @return True if pool is terminated
+     */
+    public boolean isTerminated() {
+        return isTerminated;
+    }
+
+    /**
+     * Adds task that is ready to be calculated to the queue. It's used for tasks that depend on
+     * other tasks, they are already accepted by the pool, so capacity doesn't stop them.
+     * In stopped pool task is rejected, it's called from the loop of completing thread then,
+     * see {@link Task#complete(Object, Exception)}, so rejection of a long chain doesn't go deeper into the stack
+     */
+    void execute(@NotNull Task<?> task) {
+        if (isStopped || isTerminated) {
+            task.complete(null, new RejectedExecutionException("Pool is shut down"));
+            return;
+        }
+        updateLargest(largestQueueSize, queuedTasks.incrementAndGet());
+        push(task);
+    }
+
+    /**
+     * Returns periodic task to the timer after its run
+     */
+    void schedule(@NotNull ScheduledTask<?> task) {
+        if (!timer.add(task)) {
+            task.complete(null, new RejectedExecutionException("Pool was shut down"));
+        }
+    }
+
+    /**
+     * Removes cancelled task from the timer
+     */
+    void unschedule(@NotNull ScheduledTask<?> task) {
+        timer.remove(task);
+    }
+
+    /**
+     * Checks if pool calculates tasks on its own threads that can help in join
+     */
+    boolean hasOwnThreads() {
+        return taskThreadPermits == null;
+    }
+
+    /**
+     * Adds task the same way as {@link #fork(Supplier)}
+     */
+    void forkTask(@NotNull Task<?> task) {
+        if (currentWorkerIndex() >= 0) {
+            execute(task);
+        } else {
+            executeNew(task);
+        }
+    }
+
+    /**
+     * Removes cancelled task from the queue, so it doesn't take place there
+     */
+    void remove(@NotNull Task<?> task) {
+        if (queue.remove(task)) {
+            taskTaken();
+        }
+    }
+
+    private void executeNew(@NotNull Task<?> task) {
+        checkNotShutDown(1);
+        if (reserve(1)) {
+            push(task);
+        } else if (!task.expireIfLate()) {
+            task.queuedNanos = System.nanoTime();
+            runTask(task, -1);
+        }
+    }
+
+    private void executeAllNew(@NotNull List<? extends Task<?>> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        checkNotShutDown(tasks.size());
+        if (tasks.size() > capacity && policy == OverflowPolicy.REJECT) {
+            tasksRejected(tasks.size());
+            throw new RejectedExecutionException("Batch of " + tasks.size() + " tasks is larger than queue capacity");
+        }
+        if (tasks.size() <= capacity && reserve(tasks.size())) {
+            long now = System.nanoTime();
+            for (Task<?> task : tasks) {
+                task.isQueued = true;
+                task.queuedNanos = now;
+            }
+            queue.pushAll(tasks, currentWorkerIndex());
+            tasksAdded(tasks.size());
+            return;
+        }
+        for (Task<?> task : tasks) {
+            executeNew(task);
+        }
+    }
+
+    private void push(@NotNull Task<?> task) {
+        task.isQueued = true;
+        task.queuedNanos = System.nanoTime();
+        queue.push(task, currentWorkerIndex());
+        tasksAdded(1);
+    }
+
+    private void tasksAdded(int count) {
+        if (taskThreadPermits == null) {
+            wakeUpIdle(count);
+            addWorkerIfBusy();
+        } else {
+            startTaskThreads();
+        }
+    }
+
+    /**
+     * Starts new thread if tasks wait in the queue and there are no idle threads to take them
+     */
+    private void addWorkerIfBusy() {
+        if (poolSize.get() < maximumPoolSize && idleThreads.get() == 0 && queuedTasks.get() > 0) {
+            addWorker();
+        }
+    }
+
+    /**
+     * Starts new thread if pool has less than max threads. Shut down pool only finishes its queue,
+     * so it doesn't grow: new thread is started only if there are no threads left to take the task.
+     * New thread takes free index, it's guaranteed to appear because stopping thread frees its index
+     * right after it decreases pool size
+     */
+    private void addWorker() {
+        while (true) {
+            int size = poolSize.get();
+            if (size >= maximumPoolSize || isStopped || (size > 0 && isShutDown.get())) {
+                return;
+            }
+            if (poolSize.compareAndSet(size, size + 1)) {
+                updateLargest(largestPoolSize, size + 1);
+                break;
+            }
+        }
+        for (int i = 0; ; i = (i + 1) % maximumPoolSize) {
+            if (threads.get(i) == null) {
+                Worker worker = new Worker(i);
+                if (threads.compareAndSet(i, null, worker)) {
+                    startedThreads.incrementAndGet();
+                    worker.start();
+                    return;
                 }
-            } catch (InterruptedException ignored) {
             }
         }
     }
 
-    private abstract class Task implements LightFuture<T> {
-        boolean isReady = false;
-        T result;
-        Exception getException = null;
+    /**
+     * Starts new thread for every waiting task while there are free permits.
+     * Adding thread takes permit after the push, and finishing thread checks the queue after
+     * it returns permit, so task can't be left in the queue while there are free permits
+     */
+    private void startTaskThreads() {
+        while (taskThreadPermits.tryAcquire()) {
+            Task<?> task = takeTask(-1);
+            if (task == null) {
+                taskThreadPermits.release();
+                if (queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            Thread thread = VirtualThreads.newThread(() -> {
+                try {
+                    runTask(task, -1);
+                } finally {
+                    taskThreads.remove(Thread.currentThread());
+                    taskThreadPermits.release();
+                    startTaskThreads();
+                    tryTerminate();
+                }
+            });
+            taskThreads.add(thread);
+            thread.start();
+        }
+    }
 
-        /**
-         * {@link LightFuture<T>#isReady()}
-         */
-        @Override
-        public boolean isReady() {
-            return isReady;
+    /**
+     * Takes places in the queue for new tasks, if there is not enough space overflow policy is applied
+     *
+     * @return True if places are taken, false if the caller should calculate tasks itself
+     */
+    private boolean reserve(int count) {
+        while (!tryReserve(count)) {
+            switch (policy) {
+                case REJECT:
+                    tasksRejected(count);
+                    throw new RejectedExecutionException("Task queue is full, its capacity is " + capacity);
+                case CALLER_RUNS:
+                    return false;
+                case DISCARD_OLDEST:
+                    discardOldest();
+                    break;
+                case BLOCK:
+                    if (isPoolThread()) {
+                        return false;
+                    }
+                    waitForSpace(count);
+                    return true;
+            }
         }
+        return true;
+    }
 
-        /**
-         * {@link LightFuture<T>#get()}
-         */
-        @Override
-        public synchronized T get() throws LightExecutionException {
+    private boolean tryReserve(int count) {
+        while (true) {
+            int queued = queuedTasks.get();
+            if (queued > capacity - count) {
+                return false;
+            }
+            if (queuedTasks.compareAndSet(queued, queued + count)) {
+                updateLargest(largestQueueSize, queued + count);
+                return true;
+            }
+        }
+    }
+
+    private static void updateLargest(AtomicInteger largest, int size) {
+        int current = largest.get();
+        while (size > current && !largest.compareAndSet(current, size)) {
+            current = largest.get();
+        }
+    }
+
+    private void discardOldest() {
+        Task<?> oldest = queue.pollOldest();
+        if (oldest == null) {
+            Thread.yield();
+            return;
+        }
+        taskTaken();
+        tasksRejected(1);
+        oldest.complete(null, new RejectedExecutionException("Task was discarded because task queue is full"));
+    }
+
+    /**
+     * Calculates task and notifies listeners, iteration over array doesn't allocate anything.
+     * Task isn't read after the run, it can already be reused by other thread
+     */
+    private void runTask(@NotNull Task<?> task, int worker) {
+        PoolListener[] current = listeners;
+        long start = System.nanoTime();
+        for (PoolListener listener : current) {
+            listener.taskStarted(worker, start - task.queuedNanos);
+        }
+        boolean isFailed = task.run();
+        long runNanos = System.nanoTime() - start;
+        for (PoolListener listener : current) {
+            listener.taskFinished(worker, runNanos, isFailed);
+        }
+    }
+
+    private void tasksRejected(int count) {
+        for (PoolListener listener : listeners) {
+            listener.tasksRejected(count);
+        }
+    }
+
+    /**
+     * Thread becomes blocked before it tries to reserve, and taking thread checks blocked count after
+     * it frees the place, so blocked thread can't miss free place
+     */
+    private void waitForSpace(int count) {
+        synchronized (spaceLock) {
+            blockedSubmitters.incrementAndGet();
             try {
-                while (!isReady()) {
-                    this.wait();
+                while (!tryReserve(count)) {
+                    if (isShutDown.get()) {
+                        tasksRejected(count);
+                        throw new RejectedExecutionException("Pool is shut down");
+                    }
+                    spaceLock.wait();
                 }
-            } catch (InterruptedException ignored) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                tasksRejected(count);
+                throw new RejectedExecutionException("Interrupted while waiting for space in task queue");
+            } finally {
+                blockedSubmitters.decrementAndGet();
             }
-            if (getException != null) {
-                LightExecutionException e = new LightExecutionException();
-                e.addSuppressed(getException);
-                throw e;
+        }
+    }
+
+    private Task<?> takeTask(int worker) {
+        return takeTask(worker, false);
+    }
+
+    /**
+     * Takes next task from the queue, expired tasks are completed and skipped here
+     *
+     * @param isNewest True if thread waits in join, see {@link TaskQueue#pollNewest(int)}
+     */
+    private Task<?> takeTask(int worker, boolean isNewest) {
+        while (true) {
+            Task<?> task = isNewest ? queue.pollNewest(worker) : queue.poll(worker);
+            if (task == null) {
+                return null;
+            }
+            taskTaken();
+            task.isQueued = false;
+            if (!task.expireIfLate()) {
+                return task;
             }
-            return result;
         }
+    }
 
-        /**
-         * {@link LightFuture<T>#thenApply(Function)}
-         */
-        @Override
-        public LightFuture<T> thenApply(@NotNull Function<T, T> func) {
-            Task task = new FunctionTask(this, func);
-            addTask(task);
-            return task;
+    private void taskTaken() {
+        queuedTasks.decrementAndGet();
+        if (blockedSubmitters.get() > 0) {
+            synchronized (spaceLock) {
+                spaceLock.notifyAll();
+            }
         }
+    }
 
-        public abstract void runTask();
+    private void wakeUpIdle(int taskCount) {
+        int idle = idleThreads.get();
+        if (idle > 0) {
+            synchronized (idleLock) {
+                for (int i = 0; i < Math.min(idle, taskCount); i++) {
+                    idleLock.notify();
+                }
+            }
+        }
+    }
 
+    private static <U> List<Task<? extends U>> asTasks(Collection<? extends LightFuture<? extends U>> futures) {
+        List<Task<? extends U>> tasks = new ArrayList<>(futures.size());
+        for (LightFuture<? extends U> future : futures) {
+            tasks.add(Task.asTask(future));
+        }
+        return tasks;
     }
 
-    private class SupplierTask extends Task {
-        private Supplier<T> func;
+    private void checkNotShutDown(int count) {
+        if (isShutDown.get()) {
+            tasksRejected(count);
+            throw new RejectedExecutionException("Pool is shut down");
+        }
+    }
 
-        private SupplierTask(@NotNull Supplier<T> func) {
-            this.func = func;
+    private static void rejectAll(@NotNull List<? extends Task<?>> tasks, @NotNull String message) {
+        for (Task<?> task : tasks) {
+            task.complete(null, new RejectedExecutionException(message));
         }
+    }
 
-        @Override
-        public synchronized void runTask() {
-            try {
-                result = func.get();
-            } catch (Exception e) {
-                getException = e;
+    /**
+     * Pool is terminated when it's shut down and all its threads stopped.
+     * Every stopping thread calls this, so the last one sees that pool is terminated
+     */
+    private void tryTerminate() {
+        if (!isShutDown.get() || isTerminated) {
+            return;
+        }
+        if (taskThreadPermits == null) {
+            if (poolSize.get() > 0 || !isStopped && !queue.isEmpty()) {
+                return;
+            }
+        } else if (!taskThreads.isEmpty() || taskThreadPermits.availablePermits() < maximumPoolSize
+                || !isStopped && !queue.isEmpty()) {
+            return;
+        }
+        synchronized (terminationLock) {
+            isTerminated = true;
+            terminationLock.notifyAll();
+        }
+    }
+
+    private static <E> List<? extends E> randomAccess(List<? extends E> list) {
+        return list instanceof RandomAccess ? list : new ArrayList<>(list);
+    }
+
+    private boolean isPoolThread() {
+        return currentWorkerIndex() >= 0 || taskThreads.contains(Thread.currentThread());
+    }
+
+    private int currentWorkerIndex() {
+        Thread current = Thread.currentThread();
+        if (current instanceof ThreadPoolmpl.Worker) {
+            ThreadPoolmpl<?>.Worker worker = (ThreadPoolmpl<?>.Worker) current;
+            if (worker.pool() == this) {
+                return worker.index;
             }
-            isReady = true;
-            notifyAll();
         }
+        return -1;
     }
 
-    private class FunctionTask extends Task {
-        private final Task parent;
-        private final Function<T, T> func;
+    private class Worker extends Thread {
+        private final int index;
+
+        private Worker(int index) {
+            super("Thread " + index);
+            this.index = index;
+        }
+
+        private ThreadPoolmpl<T> pool() {
+            return ThreadPoolmpl.this;
+        }
 
+        /**
+         * Queue is locked only to take a task, task itself is calculated without any pool's lock,
+         * so all the threads can calculate tasks at the same time.
+         * Thread stops only when pool is shut down or when it retires, interrupt of one task
+         * doesn't get to the next one
+         */
         @Override
-        public synchronized void runTask() {
+        public void run() {
+            boolean isRetired = false;
             try {
-                synchronized (parent) {
-                    while (!parent.isReady()) {
-                        wait();
+                while (!isStopped) {
+                    Task<?> task = takeTask(index);
+                    if (task != null) {
+                        addWorkerIfBusy();
+                        runTask(task, index);
+                        Thread.interrupted();
+                        continue;
+                    }
+                    if (isShutDown.get()) {
+                        break;
+                    }
+                    long idleStart = System.nanoTime();
+                    boolean hasTasks = waitForTasks();
+                    long idleNanos = System.nanoTime() - idleStart;
+                    for (PoolListener listener : listeners) {
+                        listener.workerIdle(index, idleNanos);
+                    }
+                    if (!hasTasks) {
+                        isRetired = true;
+                        break;
                     }
-                    try {
-                        result = func.apply(parent.get());
-                    } catch (Exception e) {
-                        getException = e;
+                }
+            } finally {
+                finish(isRetired);
+            }
+        }
+
+        /**
+         * Thread becomes idle before the last check of the queue, and adding thread checks idle count after
+         * the push, so one of them always sees the other and task can't be left without thread.
+         * Threads over core count wait for keep-alive time only
+         *
+         * @return False if thread had nothing to do for keep-alive time and should stop
+         */
+        private boolean waitForTasks() {
+            synchronized (idleLock) {
+                idleThreads.incrementAndGet();
+                try {
+                    if (!queue.isEmpty() || isShutDown.get()) {
+                        return true;
                     }
-                    isReady = true;
-                    notifyAll();
+                    if (poolSize.get() <= corePoolSize) {
+                        idleLock.wait();
+                        return true;
+                    }
+                    long start = System.nanoTime();
+                    TimeUnit.NANOSECONDS.timedWait(idleLock, keepAliveNanos);
+                    return System.nanoTime() - start < keepAliveNanos || !queue.isEmpty() || !decreasePoolSize();
+                } catch (InterruptedException e) {
+                    return true;
+                } finally {
+                    idleThreads.decrementAndGet();
+                }
+            }
+        }
+
+        private boolean decreasePoolSize() {
+            while (true) {
+                int size = poolSize.get();
+                if (size <= corePoolSize) {
+                    return false;
+                }
+                if (poolSize.compareAndSet(size, size - 1)) {
+                    retiredThreads.incrementAndGet();
+                    return true;
                 }
-            } catch (InterruptedException ignored) {
             }
         }
 
-        private FunctionTask(@NotNull Task parent, @NotNull Function<T, T> func) {
-            this.func = func;
-            this.parent = parent;
+        /**
+         * Frees thread's index. If the thread retired because of keep-alive time, some task could be added
+         * while it was retiring, so other thread is woken up or started for it
+         */
+        private void finish(boolean isRetired) {
+            if (!isRetired) {
+                poolSize.decrementAndGet();
+            }
+            threads.set(index, null);
+            if (isRetired && !queue.isEmpty()) {
+                tasksAdded(1);
+            }
+            tryTerminate();
         }
     }
 }
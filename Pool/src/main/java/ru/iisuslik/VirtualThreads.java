@@ -0,0 +1,39 @@
+package ru.iisuslik;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Source of threads for {@link SchedulingMode#VIRTUAL_THREADS}.
+ * Pool is compiled for Java 8, so virtual threads of Java 21 are found by reflection.
+ * If JVM doesn't have them, new daemon platform thread is created for every task
+ */
+class VirtualThreads {
+    private static final ThreadFactory FACTORY = createFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Creates new unstarted thread for the task
+     */
+    static Thread newThread(Runnable task) {
+        return FACTORY.newThread(task);
+    }
+
+    private static ThreadFactory createFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Virtual thread ", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return task -> {
+                Thread thread = new Thread(task, "Task thread");
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
@@ -2,6 +2,22 @@ package ru.iisuslik;
 
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 import static org.junit.Assert.*;
@@ -181,6 +197,1416 @@ public class ThreadPoolmplTest {
         pool.shutDown();
     }
 
+    /**
+     * Calculates a lot of tasks in work stealing mode
+     */
+    @Test
+    public void workStealingManyTasks() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(4, SchedulingMode.WORK_STEALING);
+        List<LightFuture<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int arg = i;
+            tasks.add(pool.addTask(() -> arg * 2));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i * 2, (int) tasks.get(i).get());
+        }
+        pool.shutDown();
+    }
+
+    /**
+     * Checks thenApply chains in work stealing mode
+     */
+    @Test
+    public void workStealingThenApply() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(3, SchedulingMode.WORK_STEALING);
+        LightFuture<Integer> task = pool.addTask(sleepingTask);
+        LightFuture<Integer> task1 = task.thenApply(a -> a + 1).thenApply(a -> a * 2);
+        LightFuture<Integer> task2 = task.thenApply(a -> a - 1);
+        assertEquals(88, (int) task1.get());
+        assertEquals(42, (int) task2.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Task added from pool thread goes to the deque of this thread, so if this thread waits for it,
+     * other thread has to steal it
+     */
+    @Test
+    public void workStealingTaskFromPoolThreadIsStolen() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2, SchedulingMode.WORK_STEALING);
+        LightFuture<Integer> task = pool.addTask(() -> {
+            LightFuture<Integer> inner = pool.addTask(() -> 42);
+            try {
+                return inner.get() + 1;
+            } catch (LightExecutionException e) {
+                return 0;
+            }
+        });
+        assertEquals(43, (int) task.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Tasks can finish only if all of them are calculated at the same time,
+     * so it checks that threads don't wait for each other in both modes
+     */
+    @Test
+    public void tasksRunInParallel() throws Exception {
+        int threadCount = 4;
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(threadCount, mode);
+            CyclicBarrier barrier = new CyclicBarrier(threadCount);
+            List<LightFuture<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                tasks.add(pool.addTask(() -> {
+                    try {
+                        barrier.await(5, TimeUnit.SECONDS);
+                        return 1;
+                    } catch (Exception e) {
+                        return 0;
+                    }
+                }));
+            }
+            for (LightFuture<Integer> task : tasks) {
+                assertEquals(1, (int) task.get());
+            }
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Continuations of not ready task don't take threads, so other tasks are calculated meanwhile
+     */
+    @Test
+    public void thenApplyDoesNotBlockThreads() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2, mode);
+            CountDownLatch latch = new CountDownLatch(1);
+            LightFuture<Integer> task = pool.addTask(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException ignored) {
+                }
+                return 1;
+            });
+            List<LightFuture<Integer>> continuations = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                continuations.add(task.thenApply(a -> a + 1));
+            }
+            assertEquals(43, (int) pool.addTask(() -> 43).get());
+            assertFalse(task.isReady());
+            latch.countDown();
+            for (LightFuture<Integer> continuation : continuations) {
+                assertEquals(2, (int) continuation.get());
+            }
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Long chain of thenApply is calculated even by one thread
+     */
+    @Test
+    public void longThenApplyChain() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1, mode);
+            LightFuture<Integer> task = pool.addTask(sleepingTask);
+            for (int i = 0; i < 10000; i++) {
+                task = task.thenApply(a -> a + 1);
+            }
+            assertEquals(10043, (int) task.get());
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * One pool calculates tasks of different types and thenApply can change the type
+     */
+    @Test
+    public void differentTypesInOnePool() throws Exception {
+        ThreadPoolmpl<Object> pool = new ThreadPoolmpl<>(2);
+        LightFuture<String> task = pool.submit(() -> "43");
+        LightFuture<Integer> length = task.thenApply(String::length);
+        LightFuture<Boolean> isEven = pool.submit(() -> 42).thenApply(a -> a % 2 == 0);
+        assertEquals("43", task.get());
+        assertEquals(2, (int) length.get());
+        assertTrue(isEven.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that thenCompose has the result of LightFuture returned by function
+     */
+    @Test
+    public void thenComposeTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        LightFuture<String> task = pool.addTask(sleepingTask)
+                .thenCompose(a -> pool.submit(() -> "result " + a));
+        assertEquals("result 43", task.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that exception from LightFuture returned by function gets to thenCompose result
+     */
+    @Test
+    public void thenComposeWithException() {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        LightFuture<Integer> task = pool.addTask(() -> 43).thenCompose(a -> pool.addTask(taskThrowsNullPointerException));
+        try {
+            task.get();
+            fail();
+        } catch (LightExecutionException e) {
+            assertEquals(NullPointerException.class.getName(), e.getSuppressed()[0].getClass().getName());
+        }
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that thenCombine waits for both tasks
+     */
+    @Test
+    public void thenCombineTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        LightFuture<Integer> task1 = pool.addTask(sleepingTask);
+        LightFuture<String> task2 = pool.submit(() -> "a");
+        LightFuture<String> combined = task1.thenCombine(task2, (a, b) -> b + a);
+        assertEquals("a43", combined.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that allOf has all the results in the right order and anyOf has one of them
+     */
+    @Test
+    public void allOfAndAnyOfTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(3);
+        LightFuture<Integer> task1 = pool.addTask(sleepingTask);
+        LightFuture<Integer> task2 = pool.addTask(() -> 1);
+        LightFuture<Integer> task3 = task2.thenApply(a -> a + 1);
+        assertEquals(Arrays.asList(43, 1, 2), pool.allOf(task1, task2, task3).get());
+        assertTrue(Arrays.asList(43, 1, 2).contains(pool.anyOf(task1, task2, task3).get()));
+        assertEquals(Collections.emptyList(), pool.allOf().get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that allOf fails if one of the tasks fails
+     */
+    @Test(expected = LightExecutionException.class)
+    public void allOfWithException() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        pool.allOf(pool.addTask(sleepingTask), pool.addTask(taskThrowsNullPointerException)).get();
+    }
+
+    /**
+     * Adds a batch of tasks in both modes and checks the whole batch and separate tasks
+     */
+    @Test
+    public void addAllTest() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(3, mode);
+            List<Supplier<Integer>> suppliers = new ArrayList<>();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int arg = i;
+                suppliers.add(() -> arg + 1);
+                expected.add(i + 1);
+            }
+            LightBatch<Integer> batch = pool.addAll(suppliers);
+            assertEquals(1000, batch.size());
+            assertEquals(expected, batch.get());
+            assertEquals(43, (int) batch.getFutures().get(42).get());
+            assertTrue(batch.getFutures().get(999).isReady());
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Checks that batch added from pool thread is calculated too
+     */
+    @Test
+    public void addAllFromPoolThread() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2, SchedulingMode.WORK_STEALING);
+        LightFuture<Integer> task = pool.addTask(() -> {
+            try {
+                return pool.invokeAll(Arrays.asList(() -> 1, () -> 2, () -> 3)).size();
+            } catch (LightExecutionException e) {
+                return 0;
+            }
+        });
+        assertEquals(3, (int) task.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks invokeAll and that batch fails if one of the tasks fails
+     */
+    @Test
+    public void invokeAllTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        assertEquals(Arrays.asList("a", "b"), pool.invokeAll(Arrays.asList(() -> "a", () -> "b")));
+        assertEquals(Collections.emptyList(), pool.invokeAll(Collections.<Supplier<String>>emptyList()));
+        try {
+            pool.invokeAll(Arrays.asList(sleepingTask, taskThrowsNullPointerException));
+            fail();
+        } catch (LightExecutionException e) {
+            assertEquals(NullPointerException.class.getName(), e.getSuppressed()[0].getClass().getName());
+        }
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that task is rejected when the queue is full and queue gauges
+     */
+    @Test
+    public void rejectWhenQueueIsFull() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            CountDownLatch latch = new CountDownLatch(1);
+            ThreadPoolmpl<Integer> pool = busyPool(mode, OverflowPolicy.REJECT, latch);
+            LightFuture<Integer> task1 = pool.addTask(() -> 1);
+            LightFuture<Integer> task2 = pool.addTask(() -> 2);
+            assertEquals(2, pool.getQueueSize());
+            assertEquals(0, pool.getRemainingQueueCapacity());
+            try {
+                pool.addTask(() -> 3);
+                fail();
+            } catch (RejectedExecutionException ignored) {
+            }
+            try {
+                pool.addAll(Arrays.asList(() -> 3, () -> 4));
+                fail();
+            } catch (RejectedExecutionException ignored) {
+            }
+            latch.countDown();
+            assertEquals(1, (int) task1.get());
+            assertEquals(2, (int) task2.get());
+            assertEquals(2, pool.getLargestQueueSize());
+            assertEquals(2, pool.getQueueCapacity());
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Checks that the caller calculates task itself when the queue is full
+     */
+    @Test
+    public void callerRunsWhenQueueIsFull() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ThreadPoolmpl<Integer> pool = busyPool(SchedulingMode.SHARED_QUEUE, OverflowPolicy.CALLER_RUNS, latch);
+        pool.addTask(() -> 1);
+        pool.addTask(() -> 2);
+        LightFuture<Thread> task = pool.submit(Thread::currentThread);
+        assertTrue(task.isReady());
+        assertEquals(Thread.currentThread(), task.get());
+        latch.countDown();
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that the oldest task is thrown away when the queue is full
+     */
+    @Test
+    public void discardOldestWhenQueueIsFull() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            CountDownLatch latch = new CountDownLatch(1);
+            ThreadPoolmpl<Integer> pool = busyPool(mode, OverflowPolicy.DISCARD_OLDEST, latch);
+            LightFuture<Integer> task1 = pool.addTask(() -> 1);
+            LightFuture<Integer> task2 = pool.addTask(() -> 2);
+            LightFuture<Integer> task3 = pool.addTask(() -> 3);
+            assertTrue(task1.isReady());
+            try {
+                task1.get();
+                fail();
+            } catch (LightExecutionException e) {
+                assertEquals(RejectedExecutionException.class.getName(), e.getSuppressed()[0].getClass().getName());
+            }
+            latch.countDown();
+            assertEquals(2, (int) task2.get());
+            assertEquals(3, (int) task3.get());
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Checks that adding thread waits until there is space in the queue
+     */
+    @Test
+    public void blockWhenQueueIsFull() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ThreadPoolmpl<Integer> pool = busyPool(SchedulingMode.SHARED_QUEUE, OverflowPolicy.BLOCK, latch);
+        pool.addTask(() -> 1);
+        pool.addTask(() -> 2);
+        List<LightFuture<Integer>> added = new ArrayList<>();
+        Thread submitter = new Thread(() -> added.add(pool.addTask(() -> 3)));
+        submitter.start();
+        submitter.join(100);
+        assertTrue(submitter.isAlive());
+        latch.countDown();
+        submitter.join();
+        assertEquals(3, (int) added.get(0).get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that in virtual threads mode tasks and continuations are calculated
+     * and no more than thread count tasks run at the same time
+     */
+    @Test
+    public void virtualThreadsLimitRunningTasks() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(3, SchedulingMode.VIRTUAL_THREADS);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<LightFuture<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            tasks.add(pool.addTask(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ignored) {
+                }
+                running.decrementAndGet();
+                return 1;
+            }).thenApply(a -> a + 1));
+        }
+        for (LightFuture<Integer> task : tasks) {
+            assertEquals(2, (int) task.get());
+        }
+        assertTrue(maxRunning.get() <= 3);
+        pool.shutDown();
+    }
+
+    /**
+     * All the tasks block until every one of them has started, so they finish only if blocked tasks
+     * don't take places of the others. Pool with a few platform threads would never calculate them
+     */
+    @Test
+    public void virtualThreadsRunBlockingTasksTogether() throws Exception {
+        int taskCount = 200;
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(taskCount, SchedulingMode.VIRTUAL_THREADS);
+        CountDownLatch started = new CountDownLatch(taskCount);
+        List<Supplier<Integer>> suppliers = new ArrayList<>();
+        for (int i = 0; i < taskCount; i++) {
+            suppliers.add(() -> {
+                started.countDown();
+                try {
+                    return started.await(10, TimeUnit.SECONDS) ? 1 : 0;
+                } catch (InterruptedException e) {
+                    return 0;
+                }
+            });
+        }
+        for (int result : pool.invokeAll(suppliers)) {
+            assertEquals(1, result);
+        }
+        pool.shutDown();
+    }
+
+    /**
+     * Shut down elastic pool calculates continuations of its tasks with the threads it has,
+     * and concurrent shutdowns don't break each other
+     */
+    @Test
+    public void shutDownPoolDoesNotGrow() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1, 4, 1, TimeUnit.MINUTES);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        LightFuture<Integer> task = pool.addTask(() -> {
+            started.countDown();
+            try {
+                latch.await();
+            } catch (InterruptedException ignored) {
+            }
+            return 1;
+        });
+        List<LightFuture<Integer>> continuations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            continuations.add(task.thenApply(x -> x + 1));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        int largestBeforeShutdown = pool.getLargestPoolSize();
+        List<Thread> shutdowns = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            shutdowns.add(new Thread(pool::shutdown));
+        }
+        for (Thread thread : shutdowns) {
+            thread.start();
+        }
+        for (Thread thread : shutdowns) {
+            thread.join();
+        }
+        latch.countDown();
+        for (LightFuture<Integer> continuation : continuations) {
+            assertEquals(2, (int) continuation.get());
+        }
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(largestBeforeShutdown, pool.getLargestPoolSize());
+    }
+
+    /**
+     * Checks that elastic pool starts threads when tasks wait and stops them after keep-alive time
+     */
+    @Test
+    public void elasticPoolGrowsAndShrinks() throws Exception {
+        for (SchedulingMode mode : new SchedulingMode[]{SchedulingMode.SHARED_QUEUE, SchedulingMode.WORK_STEALING}) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1, 4, 50, TimeUnit.MILLISECONDS,
+                    mode, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+            assertEquals(1, pool.getPoolSize());
+            CountDownLatch latch = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(4);
+            List<LightFuture<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                tasks.add(pool.addTask(() -> {
+                    started.countDown();
+                    try {
+                        latch.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                    return 1;
+                }));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(4, pool.getPoolSize());
+            assertEquals(4, pool.getLargestPoolSize());
+            latch.countDown();
+            for (LightFuture<Integer> task : tasks) {
+                assertEquals(1, (int) task.get());
+            }
+            for (int i = 0; i < 100 && pool.getPoolSize() > 1; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, pool.getPoolSize());
+            assertEquals(3, pool.getRetiredThreadCount());
+            assertEquals(4, pool.getStartedThreadCount());
+            assertEquals(7, (int) pool.addTask(() -> 7).get());
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Checks that interrupt inside one task doesn't stop pool's thread
+     */
+    @Test
+    public void interruptedTaskDoesNotStopThread() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        pool.addTask(() -> {
+            Thread.currentThread().interrupt();
+            return 1;
+        }).get();
+        assertEquals(2, (int) pool.addTask(() -> 2).get());
+        assertEquals(1, pool.getPoolSize());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that tasks go by priority, then by deadline, then in FIFO order
+     */
+    @Test
+    public void priorityAndDeadlineOrder() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ThreadPoolmpl<Integer> pool = busyPool(SchedulingMode.PRIORITY, OverflowPolicy.BLOCK, latch, 10);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<LightFuture<Integer>> tasks = new ArrayList<>();
+        tasks.add(pool.addTask(() -> order.add(1) ? 1 : 0));
+        tasks.add(pool.addTask(() -> order.add(2) ? 2 : 0, 0, 20, TimeUnit.SECONDS));
+        tasks.add(pool.addTask(() -> order.add(3) ? 3 : 0, 5));
+        tasks.add(pool.addTask(() -> order.add(4) ? 4 : 0, 0, 10, TimeUnit.SECONDS));
+        tasks.add(pool.addTask(() -> order.add(5) ? 5 : 0, -1));
+        tasks.add(pool.addTask(() -> order.add(6) ? 6 : 0));
+        latch.countDown();
+        for (LightFuture<Integer> task : tasks) {
+            task.get();
+        }
+        assertEquals(Arrays.asList(3, 4, 2, 1, 6, 5), order);
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that task isn't started after its deadline and its LightFuture is expired
+     */
+    @Test
+    public void expiredTaskIsSkipped() throws Exception {
+        for (SchedulingMode mode : new SchedulingMode[]{SchedulingMode.SHARED_QUEUE, SchedulingMode.PRIORITY}) {
+            CountDownLatch latch = new CountDownLatch(1);
+            ThreadPoolmpl<Integer> pool = busyPool(mode, OverflowPolicy.BLOCK, latch, 2);
+            AtomicInteger started = new AtomicInteger();
+            LightFuture<Integer> expired = pool.addTask(started::incrementAndGet, 0, 10, TimeUnit.MILLISECONDS);
+            LightFuture<Integer> task = pool.addTask(() -> 2, 0, 10, TimeUnit.SECONDS);
+            LightFuture<Integer> dependent = expired.thenApply(x -> x + 1);
+            Thread.sleep(50);
+            latch.countDown();
+            assertEquals(2, (int) task.get());
+            assertFalse(task.isExpired());
+            try {
+                expired.get();
+                fail();
+            } catch (LightExecutionException e) {
+                assertTrue(e.getSuppressed()[0] instanceof TimeoutException);
+            }
+            assertTrue(expired.isReady());
+            assertTrue(expired.isExpired());
+            assertEquals(0, started.get());
+            try {
+                dependent.get();
+                fail();
+            } catch (LightExecutionException ignored) {
+            }
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Many threads wait for the same task, all of them are woken up by one completion
+     */
+    @Test
+    public void manyWaitersTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        LightFuture<Integer> task = pool.addTask(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException ignored) {
+            }
+            return 42;
+        });
+        AtomicInteger sum = new AtomicInteger();
+        Thread[] waiters = new Thread[8];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = new Thread(() -> {
+                try {
+                    sum.addAndGet(task.get());
+                } catch (LightExecutionException ignored) {
+                }
+            });
+            waiters[i].start();
+        }
+        Thread.sleep(50);
+        latch.countDown();
+        for (Thread waiter : waiters) {
+            waiter.join(5000);
+        }
+        assertEquals(42 * waiters.length, sum.get());
+        assertEquals(42, (int) task.get());
+        assertEquals(42, (int) task.get(0, TimeUnit.SECONDS));
+        pool.shutDown();
+    }
+
+    /**
+     * Both threads are busy while keyed tasks are added, thread that gets free
+     * calculates all the tasks of its own group before it takes tasks of the other group
+     */
+    @Test
+    public void affinityGroupsTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2, 2);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        CountDownLatch firstLatch = new CountDownLatch(1);
+        CountDownLatch secondLatch = new CountDownLatch(1);
+        pool.submitWithAffinity(0, () -> {
+            firstStarted.countDown();
+            try {
+                firstLatch.await();
+            } catch (InterruptedException ignored) {
+            }
+            return 0;
+        });
+        firstStarted.await();
+        LightFuture<Thread> second = pool.submitWithAffinity(1, () -> {
+            secondStarted.countDown();
+            try {
+                secondLatch.await();
+            } catch (InterruptedException ignored) {
+            }
+            return Thread.currentThread();
+        });
+        secondStarted.await();
+        List<Integer> keys = Collections.synchronizedList(new ArrayList<>());
+        List<LightFuture<Thread>> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int key = i % 2;
+            tasks.add(pool.submitWithAffinity(key, () -> {
+                keys.add(key);
+                return Thread.currentThread();
+            }));
+        }
+        secondLatch.countDown();
+        for (LightFuture<Thread> task : tasks) {
+            assertSame(second.get(), task.get());
+        }
+        for (int i = 1; i < 20; i++) {
+            assertEquals(i < 10 ? keys.get(0) : keys.get(10), keys.get(i));
+        }
+        assertNotEquals(keys.get(0), keys.get(10));
+        firstLatch.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        try {
+            new ThreadPoolmpl<>(2, 3);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    /**
+     * Fail-fast scope cancels the long task after the first failure, scope without fail-fast
+     * collects all the failures, join with deadline cancels unfinished tasks
+     */
+    @Test
+    public void taskScopeTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        LightFuture<Integer> longTask;
+        try (TaskScope<Integer> scope = pool.openScope()) {
+            longTask = scope.fork(() -> {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException ignored) {
+                }
+                return 1;
+            });
+            scope.fork(taskThrowsNullPointerException);
+            long start = System.nanoTime();
+            try {
+                scope.join();
+                fail();
+            } catch (LightExecutionException e) {
+                assertEquals(1, e.getSuppressed().length);
+                assertTrue(e.getSuppressed()[0] instanceof NullPointerException);
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertTrue(longTask.isCancelled());
+            assertTrue(scope.fork(() -> 2).isCancelled());
+        }
+        try (TaskScope<Integer> scope = pool.openScope(false)) {
+            LightFuture<Integer> slowTask = scope.fork(sleepingTask);
+            scope.fork(taskThrowsNullPointerException);
+            scope.fork(taskThrowsNullPointerException);
+            try {
+                scope.join();
+                fail();
+            } catch (LightExecutionException e) {
+                assertEquals(2, e.getSuppressed().length);
+            }
+            assertEquals(43, (int) slowTask.get());
+        }
+        try (TaskScope<Integer> scope = pool.openScope()) {
+            scope.fork(() -> 1);
+            scope.fork(() -> 2);
+            assertEquals(Arrays.asList(1, 2), scope.join());
+            longTask = scope.fork(() -> {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException ignored) {
+                }
+                return 3;
+            });
+            try {
+                scope.join(10, TimeUnit.MILLISECONDS);
+                fail();
+            } catch (TimeoutException ignored) {
+            }
+            assertTrue(longTask.isCancelled());
+        }
+        try {
+            TaskScope<Integer> scope = pool.openScope();
+            scope.close();
+            scope.fork(() -> 1);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Pool has one thread, so subtasks of the scope are calculated only if timed join helps
+     */
+    @Test
+    public void timedScopeJoinCalculatesSubtasks() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1, SchedulingMode.WORK_STEALING);
+        LightFuture<Integer> task = pool.addTask(() -> {
+            try (TaskScope<Integer> scope = pool.openScope()) {
+                scope.fork(() -> 1);
+                scope.fork(() -> 2);
+                int sum = 0;
+                for (int result : scope.join(5, TimeUnit.SECONDS)) {
+                    sum += result;
+                }
+                return sum;
+            } catch (LightExecutionException | TimeoutException e) {
+                return -1;
+            }
+        });
+        assertEquals(3, (int) task.get(10, TimeUnit.SECONDS));
+        LightFuture<Integer> subtask = pool.addTask(sleepingTask);
+        try {
+            pool.join(subtask, 10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException ignored) {
+        }
+        assertEquals(43, (int) pool.join(subtask, 5, TimeUnit.SECONDS));
+        pool.shutDown();
+    }
+
+    /**
+     * Checks get with timeout
+     */
+    @Test
+    public void getWithTimeout() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        LightFuture<Integer> task = pool.addTask(sleepingTask);
+        try {
+            task.get(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException ignored) {
+        }
+        assertEquals(43, (int) task.get(5, TimeUnit.SECONDS));
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that interrupted get throws exception and keeps interrupt flag
+     */
+    @Test
+    public void interruptedGet() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        LightFuture<Integer> task = pool.addTask(sleepingTask);
+        Thread.currentThread().interrupt();
+        try {
+            task.get();
+            fail();
+        } catch (LightExecutionException e) {
+            assertTrue(e.getSuppressed()[0] instanceof InterruptedException);
+        }
+        assertTrue(Thread.interrupted());
+        assertEquals(43, (int) task.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that cancelled task is removed from the queue and its dependents are cancelled too
+     */
+    @Test
+    public void cancelQueuedTask() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            CountDownLatch latch = new CountDownLatch(1);
+            ThreadPoolmpl<Integer> pool = busyPool(mode, OverflowPolicy.REJECT, latch);
+            AtomicInteger started = new AtomicInteger();
+            LightFuture<Integer> task = pool.addTask(started::incrementAndGet);
+            LightFuture<Integer> dependent = task.thenApply(x -> x + 1);
+            LightFuture<Integer> other = pool.addTask(() -> 2);
+            assertEquals(2, pool.getQueueSize());
+            assertTrue(task.cancel(false));
+            assertFalse(task.cancel(false));
+            assertEquals(1, pool.getQueueSize());
+            assertTrue(task.isReady());
+            assertTrue(task.isCancelled());
+            assertTrue(dependent.isCancelled());
+            pool.addTask(() -> 3);
+            latch.countDown();
+            assertEquals(2, (int) other.get());
+            assertFalse(other.isCancelled());
+            try {
+                task.get();
+                fail();
+            } catch (LightExecutionException e) {
+                assertTrue(e.getSuppressed()[0] instanceof CancellationException);
+            }
+            assertEquals(0, started.get());
+            assertFalse(other.cancel(true));
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Cancel reaches dependents without recursion, so the tail of a long chain is cancelled too
+     */
+    @Test
+    public void cancelLongThenApplyChain() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ThreadPoolmpl<Integer> pool = busyPool(SchedulingMode.SHARED_QUEUE, OverflowPolicy.REJECT, latch);
+        LightFuture<Integer> root = pool.addTask(() -> 1);
+        LightFuture<Integer> task = root;
+        for (int i = 0; i < 10000; i++) {
+            task = task.thenApply(a -> a + 1);
+        }
+        assertTrue(root.cancel(false));
+        assertTrue(task.isCancelled());
+        try {
+            task.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (LightExecutionException e) {
+            assertTrue(e.getSuppressed()[0] instanceof CancellationException);
+        }
+        latch.countDown();
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that cancel interrupts running task and the thread continues with the next task
+     */
+    @Test
+    public void cancelRunningTask() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        LightFuture<Integer> task = pool.addTask(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return 1;
+        });
+        started.await();
+        assertTrue(task.cancel(true));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(task.isCancelled());
+        assertEquals(0, (int) pool.addTask(() -> Thread.currentThread().isInterrupted() ? 1 : 0).get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks counters and histograms of pool's metrics
+     */
+    @Test
+    public void metricsTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        PoolMetrics metrics = pool.getMetrics();
+        List<LightFuture<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            tasks.add(pool.addTask(sleepingTask));
+        }
+        tasks.add(pool.addTask(taskThrowsNullPointerException));
+        for (LightFuture<Integer> task : tasks) {
+            try {
+                task.get();
+            } catch (LightExecutionException ignored) {
+            }
+        }
+        for (int i = 0; i < 100 && metrics.getCompletedTaskCount() < 10; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, metrics.getCompletedTaskCount());
+        assertEquals(1, metrics.getFailedTaskCount());
+        assertEquals(0, metrics.getRejectedTaskCount());
+        assertEquals(0, metrics.getQueueSize());
+        long[] histogram = metrics.getRunTimeHistogram();
+        assertEquals(10, Arrays.stream(histogram).sum());
+        assertTrue(metrics.getRunTimePercentile(50) >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(metrics.getMeanQueueWaitTime() > 0);
+        assertTrue(metrics.getQueueWaitTimePercentile99() >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(2, metrics.getWorkerBusyRatios().length);
+        assertTrue(metrics.getBusyRatio() > 0.5);
+        pool.shutDown();
+
+        CountDownLatch latch = new CountDownLatch(1);
+        ThreadPoolmpl<Integer> busy = busyPool(SchedulingMode.SHARED_QUEUE, OverflowPolicy.REJECT, latch);
+        busy.addTask(() -> 1);
+        busy.addTask(() -> 2);
+        try {
+            busy.addTask(() -> 3);
+            fail();
+        } catch (RejectedExecutionException ignored) {
+        }
+        assertEquals(1, busy.getMetrics().getRejectedTaskCount());
+        assertEquals(2, busy.getMetrics().getQueueSize());
+        latch.countDown();
+        busy.shutDown();
+    }
+
+    /**
+     * Checks that listener gets pool's events and metrics are visible through JMX
+     */
+    @Test
+    public void listenerAndMBeanTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        CountDownLatch finishedLatch = new CountDownLatch(3);
+        PoolListener listener = new PoolListener() {
+            @Override
+            public void taskStarted(int worker, long queueWaitNanos) {
+                if (worker == 0) {
+                    started.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void taskFinished(int worker, long runNanos, boolean isFailed) {
+                finished.incrementAndGet();
+                finishedLatch.countDown();
+            }
+        };
+        pool.addListener(listener);
+        for (int i = 0; i < 3; i++) {
+            pool.addTask(() -> 1).get();
+        }
+        assertTrue(finishedLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(pool.removeListener(listener));
+        assertFalse(pool.removeListener(listener));
+        pool.addTask(() -> 1).get();
+        assertEquals(3, started.get());
+        assertEquals(3, finished.get());
+
+        ObjectName name = pool.getMetrics().registerMBean("listenerAndMBeanTest");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        assertTrue((Long) server.getAttribute(name, "CompletedTaskCount") >= 3);
+        assertEquals(0, server.getAttribute(name, "QueueSize"));
+        pool.shutDown();
+        assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * Checks that recycled task is reused with its LightFuture, even if result is got by another thread,
+     * and LightFuture can't give result twice
+     */
+    @Test
+    public void recycledTasksTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        LightFuture<Integer> first = pool.submitRecycled(() -> 1);
+        assertEquals(1, (int) first.get());
+        try {
+            first.get();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        LightFuture<Integer> second = pool.submitRecycled(sleepingTask);
+        assertSame(first, second);
+        try {
+            second.thenApply(x -> x + 1);
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+        assertEquals(43, (int) second.get());
+        LightFuture<Integer> failed = pool.submitRecycled(taskThrowsNullPointerException);
+        try {
+            failed.get();
+            fail();
+        } catch (LightExecutionException e) {
+            assertTrue(e.getSuppressed()[0] instanceof NullPointerException);
+            assertEquals(0, e.getStackTrace().length);
+        }
+        LightFuture<Integer> gotByOtherThread = pool.submitRecycled(() -> 2);
+        assertEquals(2, (int) pool.submit(() -> {
+            try {
+                return gotByOtherThread.get();
+            } catch (LightExecutionException e) {
+                return -1;
+            }
+        }).get());
+        assertSame(gotByOtherThread, pool.submitRecycled(() -> 3));
+        assertEquals(3, (int) gotByOtherThread.get());
+        int sum = 0;
+        for (int i = 0; i < 1000; i++) {
+            int x = i;
+            sum += pool.submitRecycled(() -> x).get();
+        }
+        assertEquals(999 * 1000 / 2, sum);
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that recursive tasks with fork and join don't deadlock even the pool with one thread
+     */
+    @Test
+    public void forkJoinTest() throws Exception {
+        for (SchedulingMode mode : new SchedulingMode[]{SchedulingMode.SHARED_QUEUE, SchedulingMode.WORK_STEALING}) {
+            for (int threads : new int[]{1, 4}) {
+                ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(threads, mode, 4, OverflowPolicy.REJECT);
+                assertEquals(6765, (int) pool.join(pool.fork(() -> fibonacci(pool, 20))));
+                pool.shutDown();
+            }
+        }
+    }
+
+    /**
+     * In virtual threads mode joining task can't calculate its subtask, so it has to free its place.
+     * Chain of joins is much deeper than thread count and would deadlock if joining tasks kept their places
+     */
+    @Test
+    public void virtualThreadsNestedJoinDeeperThanThreadCount() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2, SchedulingMode.VIRTUAL_THREADS);
+        LightFuture<Integer> task = pool.addTask(() -> nestedJoin(pool, 20));
+        assertEquals(20, (int) task.get(10, TimeUnit.SECONDS));
+        assertEquals(55, (int) pool.addTask(() -> fibonacci(pool, 10)).get(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Joining thread calculates the subtask itself. Interrupt sent by cancel of the subtask is cleared,
+     * but interrupt sent by cancel of the joining task stays
+     */
+    @Test
+    public void joinKeepsInterruptOfJoiningTask() throws Exception {
+        for (boolean isJoiningTaskCancelled : new boolean[]{true, false}) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1, SchedulingMode.WORK_STEALING);
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch joined = new CountDownLatch(1);
+            AtomicInteger interrupted = new AtomicInteger(-1);
+            List<LightFuture<Integer>> subtask = new ArrayList<>();
+            LightFuture<Integer> task = pool.addTask(() -> {
+                subtask.add(pool.fork(() -> {
+                    started.countDown();
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.yield();
+                    }
+                    return 1;
+                }));
+                try {
+                    pool.join(subtask.get(0));
+                } catch (LightExecutionException ignored) {
+                }
+                interrupted.set(Thread.currentThread().isInterrupted() ? 1 : 0);
+                joined.countDown();
+                return 0;
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            if (isJoiningTaskCancelled) {
+                assertTrue(task.cancel(true));
+            } else {
+                assertTrue(subtask.get(0).cancel(true));
+            }
+            assertTrue(joined.await(5, TimeUnit.SECONDS));
+            assertEquals(isJoiningTaskCancelled ? 1 : 0, interrupted.get());
+            pool.shutDown();
+        }
+    }
+
+    private int nestedJoin(ThreadPoolmpl<Integer> pool, int depth) {
+        if (depth == 0) {
+            return 0;
+        }
+        try {
+            return pool.join(pool.fork(() -> nestedJoin(pool, depth - 1))) + 1;
+        } catch (LightExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int fibonacci(ThreadPoolmpl<Integer> pool, int n) {
+        if (n < 2) {
+            return n;
+        }
+        LightFuture<Integer> first = pool.fork(() -> fibonacci(pool, n - 1));
+        LightFuture<Integer> second = pool.fork(() -> fibonacci(pool, n - 2));
+        try {
+            return pool.join(second) + pool.join(first);
+        } catch (LightExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks parallel map, reduce and forEach over lists, arrays and ranges in all the modes
+     */
+    @Test
+    public void parallelOperationsTest() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(3, mode);
+            List<Integer> list = new LinkedList<>();
+            for (int i = 0; i < 1000; i++) {
+                list.add(i);
+            }
+            Integer[] array = list.toArray(new Integer[0]);
+            List<Integer> squares = pool.parallelMap(list, x -> x * x);
+            assertEquals(1000, squares.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i * i, (int) squares.get(i));
+            }
+            assertEquals(squares, pool.parallelMap(array, x -> x * x));
+            assertEquals(squares, pool.parallelMap(0, 1000, x -> x * x));
+            assertEquals(499500, (int) pool.parallelReduce(list, 0, Integer::sum));
+            assertEquals(499500, (int) pool.parallelReduce(array, 0, Integer::sum));
+            assertEquals("0123456789", pool.parallelReduce(0, 10, "", String::valueOf, String::concat));
+            AtomicInteger sum = new AtomicInteger();
+            pool.parallelForEach(list, sum::addAndGet);
+            pool.parallelForEach(array, sum::addAndGet);
+            pool.parallelForEach(0, 1000, sum::addAndGet);
+            assertEquals(3 * 499500, sum.get());
+            assertTrue(pool.parallelMap(new ArrayList<Integer>(), x -> x).isEmpty());
+            assertEquals(7, (int) pool.parallelReduce(0, 0, 7, x -> x, Integer::sum));
+            try {
+                pool.parallelMap(list, x -> 1 / (x - 500));
+                fail();
+            } catch (LightExecutionException e) {
+                assertTrue(e.getSuppressed()[0] instanceof ArithmeticException);
+            }
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Ranges at the ends of int: positions between chunks and middles of the range don't fit in int
+     */
+    @Test
+    public void parallelRangesNearIntBounds() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(3, mode);
+            assertEquals(1001L, (long) pool.parallelReduce(Integer.MAX_VALUE - 1001, Integer.MAX_VALUE, 0L,
+                    x -> 1L, Long::sum));
+            List<Integer> numbers = pool.parallelMap(Integer.MIN_VALUE, Integer.MIN_VALUE + 1001, x -> x);
+            assertEquals(1001, numbers.size());
+            for (int i = 0; i < 1001; i++) {
+                assertEquals(Integer.MIN_VALUE + i, (int) numbers.get(i));
+            }
+            AtomicInteger count = new AtomicInteger();
+            pool.parallelForEach(Integer.MAX_VALUE - 1001, Integer.MAX_VALUE, x -> count.incrementAndGet());
+            assertEquals(1001, count.get());
+            try {
+                pool.parallelMap(-1, Integer.MAX_VALUE, x -> x);
+                fail();
+            } catch (IllegalArgumentException ignored) {
+            }
+            pool.shutDown();
+        }
+    }
+
+    /**
+     * Checks that parallel operations can be nested in pool's tasks
+     */
+    @Test
+    public void nestedParallelOperations() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2, SchedulingMode.WORK_STEALING);
+        int sum = pool.parallelReduce(0, 100, 0, i -> {
+            try {
+                return pool.parallelReduce(0, 100, 0, j -> i * j, Integer::sum);
+            } catch (LightExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }, Integer::sum);
+        assertEquals(4950 * 4950, sum);
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that scheduled task starts after delay and can be cancelled
+     */
+    @Test
+    public void scheduleTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        long start = System.nanoTime();
+        LightFuture<Long> task = pool.schedule(System::nanoTime, 100, TimeUnit.MILLISECONDS);
+        LightFuture<Integer> cancelled = pool.schedule(() -> 1, 50, TimeUnit.MILLISECONDS);
+        assertEquals(2, pool.getScheduledTaskCount());
+        assertFalse(task.isReady());
+        assertTrue(cancelled.cancel(false));
+        assertEquals(1, pool.getScheduledTaskCount());
+        assertTrue(task.get() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(cancelled.isCancelled());
+        assertEquals(0, pool.getScheduledTaskCount());
+        pool.shutDown();
+        try {
+            pool.schedule(() -> 1, 1, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    /**
+     * Checks that periodic task runs until it's cancelled or fails
+     */
+    @Test
+    public void scheduleAtFixedRateTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(2);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch fiveRuns = new CountDownLatch(5);
+        LightFuture<Void> task = pool.scheduleAtFixedRate(() -> {
+            runs.incrementAndGet();
+            fiveRuns.countDown();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        assertTrue(fiveRuns.await(5, TimeUnit.SECONDS));
+        assertFalse(task.isReady());
+        assertTrue(task.cancel(false));
+        Thread.sleep(20);
+        int runsAfterCancel = runs.get();
+        Thread.sleep(50);
+        assertEquals(runsAfterCancel, runs.get());
+
+        AtomicInteger failingRuns = new AtomicInteger();
+        LightFuture<Void> failing = pool.scheduleAtFixedRate(() -> {
+            if (failingRuns.incrementAndGet() == 3) {
+                throw new IllegalStateException();
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        try {
+            failing.get();
+            fail();
+        } catch (LightExecutionException e) {
+            assertTrue(e.getSuppressed()[0] instanceof IllegalStateException);
+        }
+        assertEquals(3, failingRuns.get());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that thousands of timers start in time
+     */
+    @Test
+    public void manyTimersTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(4);
+        Random random = new Random(43);
+        List<LightFuture<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            long delay = random.nextInt(200);
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            tasks.add(pool.schedule(() -> System.nanoTime() >= due, delay, TimeUnit.MILLISECONDS));
+        }
+        for (LightFuture<Boolean> task : tasks) {
+            assertTrue(task.get());
+        }
+        assertEquals(0, pool.getScheduledTaskCount());
+        pool.shutDown();
+    }
+
+    /**
+     * Cancelled timers are counted out at once and dropped later, periodic task cancelled in its run
+     * doesn't get back to the timer
+     */
+    @Test
+    public void cancelManyTimersTest() throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1);
+        List<LightFuture<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            tasks.add(pool.schedule(() -> 1, 1 + i % 100, TimeUnit.HOURS));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            assertTrue(tasks.get(i).cancel(false));
+            assertEquals(tasks.size() - i - 1, pool.getScheduledTaskCount());
+        }
+        AtomicInteger runs = new AtomicInteger();
+        List<LightFuture<Void>> periodic = new ArrayList<>();
+        CountDownLatch added = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        periodic.add(pool.scheduleAtFixedRate(() -> {
+            runs.incrementAndGet();
+            try {
+                added.await();
+            } catch (InterruptedException ignored) {
+            }
+            periodic.get(0).cancel(false);
+            cancelled.countDown();
+        }, 0, 1, TimeUnit.MILLISECONDS));
+        added.countDown();
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(1, runs.get());
+        assertEquals(0, pool.getScheduledTaskCount());
+        pool.shutDown();
+    }
+
+    /**
+     * Checks that shutdown rejects new tasks but calculates queued tasks and their dependents
+     */
+    @Test
+    public void shutdownDrainsQueue() throws Exception {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            CountDownLatch latch = new CountDownLatch(1);
+            ThreadPoolmpl<Integer> pool = busyPool(mode, OverflowPolicy.REJECT, latch, 10);
+            List<LightFuture<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                int x = i;
+                tasks.add(pool.addTask(() -> x));
+            }
+            LightFuture<Integer> dependent = tasks.get(4).thenApply(x -> x * 10);
+            pool.shutdown();
+            assertTrue(pool.isShutdown());
+            assertFalse(pool.isTerminated());
+            try {
+                pool.addTask(() -> 5);
+                fail();
+            } catch (RejectedExecutionException ignored) {
+            }
+            assertFalse(pool.awaitTermination(10, TimeUnit.MILLISECONDS));
+            latch.countDown();
+            assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+            assertTrue(pool.isTerminated());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i, (int) tasks.get(i).get());
+            }
+            assertEquals(40, (int) dependent.get());
+            assertEquals(0, pool.getPoolSize());
+        }
+    }
+
+    /**
+     * Checks that shutdownNow returns tasks that weren't started and fails them
+     */
+    @Test
+    public void shutdownNowFailsUnstartedTasks() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ThreadPoolmpl<Integer> pool = busyPool(SchedulingMode.WORK_STEALING, OverflowPolicy.REJECT, latch, 10);
+        LightFuture<Integer> first = pool.addTask(() -> 1);
+        LightFuture<Integer> second = pool.addTask(() -> 2);
+        LightFuture<Integer> dependent = first.thenApply(x -> x + 1);
+        LightFuture<Integer> scheduled = pool.schedule(() -> 3, 1, TimeUnit.HOURS);
+        List<LightFuture<?>> unstarted = pool.shutdownNow();
+        assertEquals(2, unstarted.size());
+        assertTrue(unstarted.contains(first));
+        assertTrue(unstarted.contains(second));
+        for (LightFuture<Integer> task : Arrays.asList(first, second, dependent, scheduled)) {
+            try {
+                task.get();
+                fail();
+            } catch (LightExecutionException e) {
+                assertTrue(e.getSuppressed()[0] instanceof RejectedExecutionException);
+            }
+        }
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getQueueSize());
+    }
+
+    /**
+     * Rejection of unstarted task reaches the tail of a long chain without recursion
+     */
+    @Test
+    public void shutdownNowRejectsLongChain() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ThreadPoolmpl<Integer> pool = busyPool(SchedulingMode.SHARED_QUEUE, OverflowPolicy.REJECT, latch);
+        LightFuture<Integer> task = pool.addTask(() -> 1);
+        for (int i = 0; i < 20000; i++) {
+            task = task.thenApply(a -> a + 1);
+        }
+        assertEquals(1, pool.shutdownNow().size());
+        try {
+            task.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (LightExecutionException e) {
+            assertTrue(e.getSuppressed()[0] instanceof RejectedExecutionException);
+        }
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Creates pool with one thread and queue of capacity 2, its thread waits for latch
+     */
+    private ThreadPoolmpl<Integer> busyPool(SchedulingMode mode, OverflowPolicy policy,
+                                            CountDownLatch latch) throws Exception {
+        return busyPool(mode, policy, latch, 2);
+    }
+
+    /**
+     * Creates pool with one thread and queue of given capacity, its thread waits for latch
+     */
+    private ThreadPoolmpl<Integer> busyPool(SchedulingMode mode, OverflowPolicy policy,
+                                            CountDownLatch latch, int capacity) throws Exception {
+        ThreadPoolmpl<Integer> pool = new ThreadPoolmpl<>(1, mode, capacity, policy);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.addTask(() -> {
+            started.countDown();
+            try {
+                latch.await();
+            } catch (InterruptedException ignored) {
+            }
+            return 0;
+        });
+        started.await();
+        return pool;
+    }
+
     private Supplier<Integer> taskThrowsNullPointerException = () -> {
         String nullString = null;
         return nullString.length();